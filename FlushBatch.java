@@ -0,0 +1,266 @@
+/*
+ *
+ * FlushBatch.java
+ *
+ * Record many FlushCassette files in parallel.
+ *
+ * Usage:
+ *
+ * java FlushRecorder -batch <manifest file> [-threads <number of threads>]
+ *      [<FlushRecorder options common to all cassettes>]
+ *
+ * Each manifest line holds the FlushRecorder options of one cassette,
+ * including -image and -file. Options may be double quoted. Blank lines
+ * and lines starting with # are skipped.
+ *
+ */
+
+package graffitv;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Record the cassettes listed in a manifest with a pool of threads.
+// Each cassette is recorded by its own recorder, so a cassette that
+// fails does not affect the others.
+public class FlushBatch
+{
+   // Globals.
+   private String   manifest;
+   private int      threads;
+   private String[] common;
+
+   // Results.
+   private int  recorded;
+   private int  failed;
+   private long frames;
+   private long bytes;
+
+   // Constructor.
+   // Common options precede each cassette's options.
+   public FlushBatch(String manifest, int threads, String[] common)
+   {
+      this.manifest = manifest;
+      this.threads  = Math.max(threads, 1);
+      this.common   = common;
+   }
+
+
+   // Record cassettes, reporting each and a summary.
+   // Returns number of cassettes that failed.
+   public int run() throws IOException
+   {
+      BufferedReader  in;
+      ExecutorService pool;
+      Vector          jobs;
+      Job             job;
+      String          line;
+      String[]        args;
+      Throwable       cause;
+      long            time;
+      int             i;
+
+      // Read manifest.
+      jobs = new Vector();
+      in   = new BufferedReader(new FileReader(manifest));
+      try
+      {
+         for (i = 1; (line = in.readLine()) != null; i++)
+         {
+            line = line.trim();
+            if ((line.length() == 0) || line.startsWith("#")) { continue; }
+            args = split(line);
+            job  = new Job(i, new String[common.length + args.length]);
+            System.arraycopy(common, 0, job.args, 0, common.length);
+            System.arraycopy(args, 0, job.args, common.length, args.length);
+            jobs.addElement(job);
+         }
+      }
+      finally {
+         in.close();
+      }
+
+      // Record and report in manifest order.
+      time = System.currentTimeMillis();
+      pool = Executors.newFixedThreadPool(threads);
+      for (i = 0; i < jobs.size(); i++)
+      {
+         job        = (Job)jobs.elementAt(i);
+         job.result = pool.submit(job);
+      }
+      for (i = 0; i < jobs.size(); i++)
+      {
+         job = (Job)jobs.elementAt(i);
+         try
+         {
+            System.out.println(job.result.get());
+         }
+         catch (ExecutionException e) {
+            // Report the message, else the exception itself.
+            cause = e.getCause();
+            System.err.println("Line " + job.line + ": " +
+                               ((cause.getMessage() != null) ? cause.getMessage() : cause.toString()));
+            failed++;
+         }
+         catch (InterruptedException e) {
+            System.err.println("Line " + job.line + ": interrupted");
+            failed++;
+         }
+      }
+      pool.shutdown();
+      time = Math.max(System.currentTimeMillis() - time, 1);
+
+      System.out.println("Recorded " + recorded + " cassettes (" + frames + " frames, " +
+                         bytes + " bytes) in " + time + " ms with " + threads + " threads: " +
+                         String.format("%.2f", (recorded * 1000.0) / time) + " cassettes/s, " +
+                         String.format("%.1f", (frames * 1000.0) / time) + " frames/s; " +
+                         failed + " failed");
+      return(failed);
+   }
+
+
+   // Recording job for one manifest line.
+   class Job implements Callable<String>
+   {
+      int            line;
+      String[]       args;
+      Future<String> result;
+
+      // Constructor.
+      public Job(int line, String[] args)
+      {
+         this.line = line;
+         this.args = args;
+      }
+
+
+      // Record cassette, returning report.
+      public String call() throws Exception
+      {
+         FlushRecorder recorder;
+         long          time, length;
+         int           n;
+
+         recorder = new FlushRecorder();
+         recorder.getargs(args);
+         recorder.recordings = threads;
+         if (recorder.canvas != null)
+         {
+            throw new IllegalArgumentException("-display not supported in batch");
+         }
+         if (recorder.cassetteFile() == null)
+         {
+            throw new IllegalArgumentException("Missing file");
+         }
+         time   = System.currentTimeMillis();
+         n      = recorder.record();
+         time   = System.currentTimeMillis() - time;
+         length = new File(recorder.cassetteFile()).length();
+         synchronized (FlushBatch.this)
+         {
+            recorded++;
+            frames += n;
+            bytes  += length;
+         }
+         return(recorder.cassetteFile() + ": " + n + " frames, " + length + " bytes, " +
+                time + " ms");
+      }
+   }
+
+
+   // Split line into options, keeping double quoted text together.
+   static String[] split(String line)
+   {
+      Vector       options;
+      StringBuffer option;
+      boolean      quoted, started;
+      char         c;
+      String[]     result;
+      int          i;
+
+      options = new Vector();
+      option  = new StringBuffer();
+      quoted  = started = false;
+      for (i = 0; i < line.length(); i++)
+      {
+         c = line.charAt(i);
+         if (c == '"')
+         {
+            quoted  = !quoted;
+            started = true;
+         }
+         else if (!quoted && Character.isWhitespace(c))
+         {
+            if (started) { options.addElement(option.toString()); }
+            option.setLength(0);
+            started = false;
+         }
+         else
+         {
+            option.append(c);
+            started = true;
+         }
+      }
+      if (started) { options.addElement(option.toString()); }
+      result = new String[options.size()];
+      options.copyInto(result);
+      return(result);
+   }
+
+
+   // Run batch from FlushRecorder command line.
+   // Returns number of cassettes that failed, or -1 for invalid usage.
+   public static int batch(String args[])
+   {
+      String manifest;
+      int    threads, i;
+      Vector common;
+
+      manifest = null;
+      threads  = Runtime.getRuntime().availableProcessors();
+      common   = new Vector();
+      for (i = 0; i < args.length; i++)
+      {
+         if (args[i].equals("-batch") && (i < args.length - 1))
+         {
+            i++;
+            manifest = args[i];
+         }
+         else if (args[i].equals("-threads") && (i < args.length - 1))
+         {
+            i++;
+            try
+            {
+               threads = Integer.parseInt(args[i]);
+            }
+            catch (NumberFormatException e) {
+               threads = 0;
+            }
+            if (threads < 1)
+            {
+               System.err.println("Invalid threads");
+               return(-1);
+            }
+         }
+         else
+         {
+            common.addElement(args[i]);
+         }
+      }
+      if (manifest == null)
+      {
+         FlushRecorder.usage();
+         return(-1);
+      }
+      try
+      {
+         return(new FlushBatch(manifest, threads,
+                               (String[])common.toArray(new String[common.size()])).run());
+      }
+      catch (IOException e) {
+         System.err.println("Cannot read manifest " + manifest + ": " + e.getMessage());
+         return(-1);
+      }
+   }
+}
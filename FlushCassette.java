@@ -15,6 +15,7 @@ import java.util.*;
 import java.util.zip.*;
 import java.net.*;
 import java.io.*;
+import java.nio.*;
 
 public class FlushCassette extends Applet
 {
@@ -47,12 +48,24 @@ public class FlushCassette extends Applet
    private int mode;
 
    // Play mode.
-   private Vector    animation;       // Frame sequence.
-   private int       cursor;          // Sequence cursor.
-   private AudioClip sound;           // Sound effect.
+   private Vector            animation;      // Frame sequence.
+   private int               cursor;         // Sequence cursor.
+   private AudioClip         sound;          // Sound effect.
+   private ObjectInputStream in;             // Version 1 cassette stream.
+   private byte[]            block;          // Version 1 frame data block.
+   private IntBuffer         blockInts;      // Its ints.
+   private FlushReader       reader;         // Chunked cassette reader.
+   private Loader            loader;         // Background frame loader.
+   private boolean           loading;        // Frames still being added.
+   private int               synthesisSize;  // Procedural frame size.
+   private int               synthesisDelay; // Procedural flush delay.
+
+   // Screen frames are shown on, and its images of repeated frames.
+   private GraphicsConfiguration screen;
+   private Hashtable             compatible;
 
    // Record mode.
-   private ObjectOutputStream out;      // Output stream.
+   private FlushWriter writer;          // Cassette writer.
 
    // Applet context.
    private AppletContext context;
@@ -60,6 +73,14 @@ public class FlushCassette extends Applet
    // Record mode constructor.
    public FlushCassette(String cassetteFile, String cassetteTitle,
                         String soundFile, int size) throws IOException
+   {
+      this(cassetteFile, cassetteTitle, soundFile, size, FlushFormat.KEY_FRAME_INTERVAL);
+   }
+
+
+   // Record mode constructor with key frame interval.
+   public FlushCassette(String cassetteFile, String cassetteTitle,
+                        String soundFile, int size, int keyFrameInterval) throws IOException
    {
       mode = RECORD;
       this.cassetteFile  = cassetteFile;
@@ -71,18 +92,14 @@ public class FlushCassette extends Applet
       {
          if (cassetteFile != null)
          {
-            out = new ObjectOutputStream(new GZIPOutputStream(
-                                            new FileOutputStream(cassetteFile)));
+            writer = new FlushWriter(new FileOutputStream(cassetteFile),
+                                     cassetteTitle, soundFile, size, keyFrameInterval);
          }
          else
          {
-            out = new ObjectOutputStream(new GZIPOutputStream(
-                                            new FileOutputStream(FileDescriptor.out)));
+            writer = new FlushWriter(new FileOutputStream(FileDescriptor.out),
+                                     cassetteTitle, soundFile, size, keyFrameInterval);
          }
-         out.writeObject(cassetteTitle);
-         out.writeObject(soundFile);
-         out.writeInt(size);
-         out.flush();
       }
       catch (Exception e) {
          throw new IOException(e.getMessage());
@@ -94,82 +111,273 @@ public class FlushCassette extends Applet
    // Play mode constructor.
    public FlushCassette(String cassetteFile, AppletContext context) throws IOException
    {
-      ObjectInputStream in;
-      MemoryImageSource memory;
-      URL               url;
-      MediaTracker      tracker;
-      Image             image;
-      int               i, j;
+      this(cassetteFile, context, -1, -1);
+   }
+
+
+   // Play mode constructor with size and flush delay of synthesized
+   // frames, applying only to procedural cassettes; -1 keeps the
+   // recorded values.
+   public FlushCassette(String cassetteFile, AppletContext context,
+                        int synthesisSize, int synthesisDelay) throws IOException
+   {
+      URL                 url;
+      BufferedInputStream stream;
+      byte[]              magic;
+      Frame               frame;
 
       mode = PLAY;
-      this.cassetteFile = cassetteFile;
-      this.context      = context;
-      animation         = new Vector();
-      cursor            = 0;
+      this.cassetteFile   = cassetteFile;
+      this.context        = context;
+      this.synthesisSize  = synthesisSize;
+      this.synthesisDelay = synthesisDelay;
+      animation           = new Vector();
+      cursor              = 0;
+      compatible          = new Hashtable();
+      if (!GraphicsEnvironment.isHeadless())
+      {
+         try
+         {
+            screen = GraphicsEnvironment.getLocalGraphicsEnvironment().
+                        getDefaultScreenDevice().getDefaultConfiguration();
+         }
+         catch (Exception e) {
+            screen = null;
+         }
+      }
 
-      // Read "header".
+      // Open cassette according to format version and load first frame.
       status("Loading cassette " + cassetteFile + "...");
       try
       {
-         InputStream     stream  = getClass().getResourceAsStream(cassetteFile);
-         GZIPInputStream gstream = new GZIPInputStream(stream);
-         in            = new ObjectInputStream(gstream);
-         cassetteTitle = (String)in.readObject();
-         soundFile     = (String)in.readObject();
-         size          = in.readInt();
+         if ((url = getClass().getResource(cassetteFile)) == null)
+         {
+            throw new IOException("Cannot find cassette " + cassetteFile);
+         }
+         stream = new BufferedInputStream(url.openStream());
+         magic  = new byte[FlushFormat.MAGIC.length];
+         stream.mark(magic.length);
+         if ((stream.read(magic) == magic.length) && Arrays.equals(magic, FlushFormat.MAGIC))
+         {
+            stream.reset();
+            reader        = openReader(url, stream);
+            cassetteTitle = reader.title();
+            soundFile     = reader.soundFile();
+            size          = reader.size();
+         }
+         else
+         {
+            stream.reset();
+            openStream(stream);
+         }
+         status("Loading frames...");
+         if ((frame = loadFrame(0)) != null) { animation.addElement(frame); }
+      }
+      catch (IOException e) {
+         throw e;
       }
       catch (Exception e) {
          throw new IOException(e.getMessage());
       }
 
-      // Read frames.
-      status("Loading frames...");
-      tracker = new MediaTracker(this);
-      j       = 0;
-      while (true)
+      // Load remaining frames in background.
+      if (frame != null)
+      {
+         loading = true;
+         loader  = new Loader(1);
+         loader.start();
+      }
+
+      // Load sound.
+      if (soundFile != null)
+      {
+         status("Loading sound...");
+         try
+         {
+            sound = loadSound(soundFile);
+         }
+         catch (Exception e) {
+            throw new IOException(e.getMessage());
+         }
+      }
+   }
+
+
+   // Open version 1 cassette: a single compressed object stream.
+   private void openStream(InputStream stream) throws Exception
+   {
+      // Read "header".
+      in            = new ObjectInputStream(new GZIPInputStream(stream));
+      cassetteTitle = (String)in.readObject();
+      soundFile     = (String)in.readObject();
+      size          = in.readInt();
+      block         = new byte[FlushFormat.BLOCK_SIZE];
+      blockInts     = ByteBuffer.wrap(block).asIntBuffer();
+   }
+
+
+   // Open random access reader of chunked cassette.
+   // A cassette file is memory mapped; any other resource, such as a jar
+   // entry, is read into memory.
+   private FlushReader openReader(URL url, InputStream stream) throws Exception
+   {
+      ByteArrayOutputStream bytes;
+      byte[]                buffer;
+      int                   n;
+
+      if (url.getProtocol().equals("file"))
+      {
+         stream.close();
+         return(new FlushReader(new File(url.toURI()), synthesisSize, synthesisDelay));
+      }
+      bytes  = new ByteArrayOutputStream();
+      buffer = new byte[8192];
+      while ((n = stream.read(buffer)) != -1) { bytes.write(buffer, 0, n); }
+      stream.close();
+      return(new FlushReader(ByteBuffer.wrap(bytes.toByteArray()),
+                             synthesisSize, synthesisDelay));
+   }
+
+
+   // Load next frame, or return null after the last.
+   // Version 1 frames are read in order from the stream; chunked
+   // cassette frames are decoded or synthesized by the reader. Frames
+   // are then copied to images compatible with the screen.
+   private Frame loadFrame(int n) throws IOException
+   {
+      Image image;
+      int   i, k, show;
+
+      if (reader != null)
+      {
+         if ((image = reader.image(n)) == null) { return(null); }
+         show = reader.show(n);
+      }
+      else
       {
          i = 0;
          try
          {
             pixels = new int[size * size];
-            for (i = 0; i < pixels.length; i++) { pixels[i] = in.readInt(); }
-            memory = new MemoryImageSource(size, size, pixels, 0, size);
-            image  = createImage(memory);
-            tracker.addImage(image, 0);
-            animation.addElement(new Frame(image, new Dimension(size, size), in.readInt()));
-            status("Frame " + j + " loaded");
-            j++;
+            for ( ; i < pixels.length; i += k)
+            {
+               k = Math.min(pixels.length - i, block.length / 4);
+               in.readFully(block, 0, k * 4);
+               ((Buffer)blockInts).clear();
+               blockInts.get(pixels, i, k);
+            }
+            show = in.readInt();
          }
          catch (EOFException e) {
             if (i != 0) { throw new IOException(e.getMessage()); }
-            break;
-         }
-         catch (IOException e) {
-            throw new IOException(e.getMessage());
+            in.close();
+            return(null);
          }
+         image = FlushRenderer.image(pixels, size);
       }
-      in.close();
-      try
+      image = compatible(image, (reader != null) && reader.repeated(n));
+      status("Frame " + n + " loaded");
+      return(new Frame(image, new Dimension(size, size), show));
+   }
+
+
+   // Copy image to one compatible with the screen, which Java2D can
+   // keep in accelerated memory, unlike images whose pixels have been
+   // written directly. Without a screen the image is kept as it is.
+   // Copies of repeated frames are kept for their repeats to share.
+   private Image compatible(Image image, boolean repeated)
+   {
+      Image    copy;
+      Graphics g;
+
+      if (screen == null) { return(image); }
+      if ((copy = (Image)compatible.get(image)) != null) { return(copy); }
+      copy = screen.createCompatibleImage(image.getWidth(null), image.getHeight(null));
+      g    = copy.getGraphics();
+      g.drawImage(image, 0, 0, null);
+      g.dispose();
+      if (repeated) { compatible.put(image, copy); }
+      return(copy);
+   }
+
+
+   // Frame loader.
+   // Frames after the first are loaded in order in the background and
+   // published as they are ready, so playback can start at once and
+   // only waits if it overtakes loading.
+   class Loader implements Runnable
+   {
+      private int    first;
+      private Thread thread;
+
+      // Constructor.
+      public Loader(int first)
       {
-         tracker.waitForAll();
+         this.first = first;
       }
-      catch (InterruptedException e) {
-         throw new IOException(e.getMessage());
+
+
+      // Start.
+      public void start()
+      {
+         if (thread == null)
+         {
+            thread = new Thread(this);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            thread.start();
+         }
       }
 
-      // Load sound.
-      if (soundFile != null)
+
+      // Stop.
+      public synchronized void stop()
       {
-         status("Loading sound...");
-         try
+         thread = null;
+      }
+
+
+      // Load frames until the last.
+      public void run()
+      {
+         Thread me;
+         Frame  frame;
+         int    i;
+
+         if ((me = Thread.currentThread()) != thread) { return; }
+
+         for (i = first; thread == me; i++)
          {
-            sound = loadSound(soundFile);
+            try
+            {
+               frame = loadFrame(i);
+            }
+            catch (IOException e) {
+               status("Frame " + i + " load failed: " + e.getMessage());
+               frame = null;
+            }
+            if (frame == null) { break; }
+            synchronized (animation)
+            {
+               animation.addElement(frame);
+               animation.notifyAll();
+            }
          }
-         catch (Exception e) {
-            throw new IOException(e.getMessage());
+         if (thread == me) { status("Cassette " + cassetteFile + " loaded"); }
+         if (in != null)
+         {
+            try
+            {
+               in.close();
+            }
+            catch (IOException e) {}
+         }
+         synchronized (animation)
+         {
+            loading = false;
+            animation.notifyAll();
          }
+         thread = null;
       }
-      status("Cassette " + cassetteFile + " loaded");
    }
 
 
@@ -233,7 +441,6 @@ public class FlushCassette extends Applet
    public void add(Frame frame)
    {
       PixelGrabber grabber;
-      int          i;
 
       if (mode == PLAY) { return; }
 
@@ -244,19 +451,23 @@ public class FlushCassette extends Applet
       catch (InterruptedException e) { return; }
 
       try {
-         for (i = 0; i < pixels.length; i++) { out.writeInt(pixels[i]); }
-         out.writeInt(frame.show);
+         writer.add(pixels, frame.show);
       }
       catch (IOException e) {}
    }
 
 
    // Close animation.
+   // In play mode, stop loading frames.
    public void close()
    {
-      if (mode == PLAY) { return; }
+      if (mode == PLAY)
+      {
+         if (loader != null) { loader.stop(); }
+         return;
+      }
       try {
-         out.close();
+         writer.close();
       }
       catch (IOException e) {}
    }
@@ -271,11 +482,32 @@ public class FlushCassette extends Applet
    }
 
 
-   // Next frame.
+   // Next frame, waiting for it if still being loaded.
    public Frame next()
    {
       if (mode == RECORD) { return(null); }
-      cursor++;
+      return(seek(cursor + 1));
+   }
+
+
+   // Seek to frame, waiting for it if still being loaded.
+   public Frame seek(int frame)
+   {
+      if (mode == RECORD) { return(null); }
+      cursor = frame;
+      synchronized (animation)
+      {
+         while (loading && (cursor >= animation.size()))
+         {
+            try
+            {
+               animation.wait();
+            }
+            catch (InterruptedException e) {
+               break;
+            }
+         }
+      }
       return(current());
    }
 
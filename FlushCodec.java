@@ -0,0 +1,98 @@
+/*
+ *
+ * FlushCodec.java
+ *
+ * Compression of FlushCassette chunks.
+ *
+ */
+
+package graffitv;
+
+import java.io.*;
+import java.nio.*;
+
+// Codec compressing the chunks of a cassette.
+// The codec's id is recorded in the cassette header, so the player
+// decompresses with the codec the cassette was recorded with. Chunks
+// are compressed and decompressed in parallel, so codecs must be safe
+// to use from several threads at once. Further codecs can be added
+// with register().
+public abstract class FlushCodec
+{
+   // Codec ids.
+   static final int GZIP  = 0;
+   static final int STORE = 1;
+   static final int LZ    = 2;
+
+   // Registered codecs by id.
+   private static FlushCodec[] codecs = new FlushCodec[256];
+
+   static
+   {
+      register(new FlushGzipCodec());
+      register(new FlushStoreCodec());
+      register(new FlushLZCodec());
+   }
+
+   // Get id recorded in cassette header: 0 to 255.
+   public abstract int id();
+
+
+   // Get name selecting the codec when recording.
+   public abstract String name();
+
+
+   // Compress chunk records.
+   // Level is 0 (fastest) to 9 (smallest), or -1 for the codec's
+   // default; codecs without levels ignore it.
+   public abstract byte[] compress(byte[] records, int level) throws IOException;
+
+
+   // Decompress chunk to its records.
+   public abstract byte[] decompress(ByteBuffer chunk) throws IOException;
+
+
+   // Register codec, replacing any codec with the same id.
+   public static synchronized void register(FlushCodec codec)
+   {
+      codecs[codec.id()] = codec;
+   }
+
+
+   // Get codec by id, or null if none.
+   public static synchronized FlushCodec codec(int id)
+   {
+      if ((id < 0) || (id >= codecs.length)) { return(null); }
+      return(codecs[id]);
+   }
+
+
+   // Get codec by name, or null if none.
+   public static synchronized FlushCodec codec(String name)
+   {
+      int i;
+
+      for (i = 0; i < codecs.length; i++)
+      {
+         if ((codecs[i] != null) && codecs[i].name().equals(name)) { return(codecs[i]); }
+      }
+      return(null);
+   }
+
+
+   // Get names of registered codecs, separated by '|'.
+   public static synchronized String names()
+   {
+      StringBuffer names;
+      int          i;
+
+      names = new StringBuffer();
+      for (i = 0; i < codecs.length; i++)
+      {
+         if (codecs[i] == null) { continue; }
+         if (names.length() > 0) { names.append('|'); }
+         names.append(codecs[i].name());
+      }
+      return(names.toString());
+   }
+}
@@ -0,0 +1,417 @@
+/*
+ *
+ * FlushEngine.java
+ *
+ * Simulate an image flushing down a toilet.
+ *
+ */
+
+package graffitv;
+
+import java.awt.*;
+import java.awt.geom.*;
+import java.awt.image.*;
+import java.util.*;
+
+// Spiral swirls of image fragments into the toilet hole.
+// The simulation is deterministic given the source image and parameters,
+// so a player can synthesize the frames of a procedural cassette instead
+// of loading them.
+public class FlushEngine
+{
+   // Parameters.
+   int    size;
+   int    holeSize;
+   int    fragmentSize;
+   int    rotationIncrement;
+   int    numSpiral;
+   double minSpiral;
+   double maxSpiral;
+   double spiralConverge;
+   long   randomSeed;
+   int[]  source;
+
+   // Globals.
+   private AffineTransform xform;
+   private Random          random;
+   private int             radius;
+   private int             holeRadius;
+   private int             fragmentStagger;
+   private double          scales[];
+   private int[][]         spiralX, spiralY;
+
+   // Per spiral coefficients of a step: rotation by the rotation
+   // increment combined with the spiral's scale.
+   private double[] stepXX, stepXY, stepYX, stepYY;
+
+   // Fragments still swirling, as parallel arrays: id, location,
+   // spiral and index of the spiral point being followed.
+   private int   alive;
+   private int[] ids, locationX, locationY, spiral, index;
+
+   // Placement counts by spiral.
+   private int[] spiralStart;
+
+   // Fragment atlas: initial upper left corners.
+   int   fragmentCount;
+   int[] fragmentX, fragmentY;
+
+   // Fragment placements of latest flush, in painting order.
+   int   placements;
+   int[] placeIds, placeX, placeY;
+
+   // Renderer.
+   FlushRenderer renderer;
+
+   // Constructor.
+   // Source is size x size pixels of the image to be flushed.
+   public FlushEngine(int[] source, int size, int holeSize, int fragmentSize,
+                      int rotationIncrement, int numSpiral, double minSpiral,
+                      double maxSpiral, double spiralConverge, long randomSeed)
+   {
+      this.source            = source;
+      this.size              = size;
+      this.holeSize          = holeSize;
+      this.fragmentSize      = fragmentSize;
+      this.rotationIncrement = rotationIncrement;
+      this.numSpiral         = numSpiral;
+      this.minSpiral         = minSpiral;
+      this.maxSpiral         = maxSpiral;
+      this.spiralConverge    = spiralConverge;
+      this.randomSeed        = randomSeed;
+      init();
+   }
+
+
+   // Initialize spirals and fragments.
+   private void init()
+   {
+      int            i, j, n, s, x, y, cx, cy;
+      double         a, d;
+      Point2D.Double p1, p2;
+      Point          p;
+      Vector         points;
+      SpiralIndex    nearest;
+
+      radius          = size / 2;
+      holeRadius      = holeSize / 2;
+      fragmentStagger = (int)(Math.sqrt((double)(fragmentSize * fragmentSize) / 2.0));
+      xform           = new AffineTransform();
+      random          = new Random(randomSeed);
+
+      // Create random spirals.
+      // Fragments will follow the nearest spiral to the center.
+      scales  = new double[numSpiral];
+      spiralX = new int[numSpiral][];
+      spiralY = new int[numSpiral][];
+      stepXX  = new double[numSpiral];
+      stepXY  = new double[numSpiral];
+      stepYX  = new double[numSpiral];
+      stepYY  = new double[numSpiral];
+      cx      = size / 2;
+      cy      = size / 2;
+      p1      = new Point2D.Double();
+      p2      = new Point2D.Double();
+      points  = new Vector();
+      for (s = 0; s < numSpiral; s++)
+      {
+         scales[s] = randscale();
+         points.removeAllElements();
+         a = Math.toRadians((double)random.nextInt(360));
+         xform.setToRotation(a);
+         p1.setLocation(0.0, (double)radius);
+         xform.transform(p1, p2);
+         x = (int)p2.getX() + cx;
+         y = (int)p2.getY() + cy;
+         a = Math.toRadians((double)rotationIncrement);
+         while (true)
+         {
+            points.addElement(new Point(x, y));
+            p1.setLocation((double)(x - cx), (double)(y - cy));
+            xform.setToRotation(a);
+            xform.scale(scales[s], scales[s]);
+            xform.transform(p1, p2);
+            x = (int)p2.getX() + cx;
+            y = (int)p2.getY() + cy;
+            if ((x < 0) || (x >= size) || (y < 0) || (y >= size)) { break; }
+            d = edist((double)x, (double)y, (double)cx, (double)cy);
+            if ((d <= (double)holeRadius) || (d >= (double)radius)) { break; }
+         }
+         spiralX[s] = new int[points.size()];
+         spiralY[s] = new int[points.size()];
+         for (i = 0; i < points.size(); i++)
+         {
+            p             = (Point)points.elementAt(i);
+            spiralX[s][i] = p.x;
+            spiralY[s][i] = p.y;
+         }
+
+         // The transform's coefficients, applied as it applies them,
+         // step fragments on this spiral.
+         stepXX[s] = xform.getScaleX();
+         stepXY[s] = xform.getShearX();
+         stepYX[s] = xform.getShearY();
+         stepYY[s] = xform.getScaleY();
+      }
+
+      // Create image fragments.
+      nearest = new SpiralIndex();
+      n       = (size / Math.max(fragmentStagger, 1)) + 1;
+      n      *= n;
+      ids       = new int[n];
+      locationX = new int[n];
+      locationY = new int[n];
+      spiral    = new int[n];
+      index     = new int[n];
+      alive     = 0;
+      j         = size - fragmentSize;
+      for (x = fragmentSize / 2; x < j; x += fragmentStagger)
+      {
+         for (y = fragmentSize / 2; y < j; y += fragmentStagger)
+         {
+            d = edist((double)x, (double)y, (double)cx, (double)cy);
+            if (d >= (double)radius) { continue; }
+
+            // Assign spiral to fragment.
+            i                = nearest.nearest(x, y);
+            ids[alive]       = alive;
+            locationX[alive] = x;
+            locationY[alive] = y;
+            spiral[alive]    = nearest.spiral[i];
+            index[alive]     = nearest.index[i];
+            alive++;
+         }
+      }
+
+      // Create renderer of fragments cut from their initial locations.
+      fragmentCount = alive;
+      fragmentX     = new int[fragmentCount];
+      fragmentY     = new int[fragmentCount];
+      System.arraycopy(locationX, 0, fragmentX, 0, fragmentCount);
+      System.arraycopy(locationY, 0, fragmentY, 0, fragmentCount);
+      renderer = new FlushRenderer(size, holeRadius, fragmentSize, source,
+                                   fragmentCount, fragmentX, fragmentY);
+      placements  = -1;
+      placeIds    = new int[fragmentCount];
+      placeX      = new int[fragmentCount];
+      placeY      = new int[fragmentCount];
+      spiralStart = new int[numSpiral + 1];
+   }
+
+
+   // Grid of spiral points for finding the point nearest a fragment.
+   // Points are numbered spiral by spiral in order along each spiral, and
+   // the nearest point is the one with the least squared distance and,
+   // of equals, the lowest number, as a scan of all spirals would find.
+   private class SpiralIndex
+   {
+      int[] spiral, index;           // Spiral and index along it of point.
+      int[] pointX, pointY;
+      int   cell;                    // Cell width.
+      int   width;                   // Grid width in cells.
+      int[] cellStart;               // Start of cell's points in cellPoints.
+      int[] cellPoints;              // Points by cell, in number order.
+
+      // Constructor.
+      public SpiralIndex()
+      {
+         int   i, j, k, n, s;
+         int[] fill;
+
+         // Number points.
+         for (s = n = 0; s < numSpiral; s++) { n += spiralX[s].length; }
+         spiral = new int[n];
+         index  = new int[n];
+         pointX = new int[n];
+         pointY = new int[n];
+         for (s = n = 0; s < numSpiral; s++)
+         {
+            for (i = 0, j = spiralX[s].length; i < j; i++, n++)
+            {
+               spiral[n] = s;
+               index[n]  = i;
+               pointX[n] = spiralX[s][i];
+               pointY[n] = spiralY[s][i];
+            }
+         }
+
+         // Bucket points into cells holding a few points on average.
+         cell       = Math.max((int)Math.sqrt((2.0 * size * size) / n), 1);
+         width      = (size / cell) + 1;
+         cellStart  = new int[(width * width) + 1];
+         cellPoints = new int[n];
+         for (i = 0; i < n; i++) { cellStart[cellOf(pointX[i], pointY[i]) + 1]++; }
+         for (i = 0; i < width * width; i++) { cellStart[i + 1] += cellStart[i]; }
+         fill = new int[width * width];
+         for (i = 0; i < n; i++)
+         {
+            k = cellOf(pointX[i], pointY[i]);
+            cellPoints[cellStart[k] + fill[k]++] = i;
+         }
+      }
+
+
+      // Cell of location.
+      private int cellOf(int x, int y)
+      {
+         x = Math.min(Math.max(x / cell, 0), width - 1);
+         y = Math.min(Math.max(y / cell, 0), width - 1);
+         return((y * width) + x);
+      }
+
+
+      // Number of point nearest to location.
+      // Searches rings of cells around the location's cell until no
+      // unsearched point can be as near as the nearest found.
+      public int nearest(int x, int y)
+      {
+         int  r, i, j, k, n, cx, cy, gx, gy, dx, dy;
+         long d, best;
+
+         cx   = Math.min(Math.max(x / cell, 0), width - 1);
+         cy   = Math.min(Math.max(y / cell, 0), width - 1);
+         n    = -1;
+         best = Long.MAX_VALUE;
+         for (r = 0; r < width; r++)
+         {
+            for (gy = cy - r; gy <= cy + r; gy++)
+            {
+               if ((gy < 0) || (gy >= width)) { continue; }
+               for (gx = cx - r; gx <= cx + r; gx++)
+               {
+                  if ((gx < 0) || (gx >= width)) { continue; }
+                  if ((gy != cy - r) && (gy != cy + r) && (gx != cx - r) && (gx != cx + r))
+                  {
+                     gx = cx + r - 1;
+                     continue;
+                  }
+                  k = (gy * width) + gx;
+                  for (i = cellStart[k], j = cellStart[k + 1]; i < j; i++)
+                  {
+                     dx = pointX[cellPoints[i]] - x;
+                     dy = pointY[cellPoints[i]] - y;
+                     d  = ((long)dx * dx) + ((long)dy * dy);
+                     if ((d < best) || ((d == best) && (cellPoints[i] < n)))
+                     {
+                        best = d;
+                        n    = cellPoints[i];
+                     }
+                  }
+               }
+            }
+
+            // Points outside the rings searched are farther than r cells.
+            if ((n != -1) && (best <= (long)(r * cell) * (long)(r * cell))) { break; }
+         }
+         return(n);
+      }
+   }
+
+
+   // Generate random scale to simulate turbulence.
+   private double randscale()
+   {
+      int i = (int)((maxSpiral - minSpiral) * 100.0) + 1;
+
+      return(((double)random.nextInt(i) / 100.0) + minSpiral);
+   }
+
+
+   // Flush - returns true when image completely flushed.
+   // Incrementally spiral swirls of image fragments into the
+   // image center using a combined rotation and scale reduction.
+   public boolean flush()
+   {
+      int    i, j, k, s, x2, y2, cx, cy, dx, dy, d, hole, rim;
+      double px, py;
+
+      // Spiral fragments, keeping those still between hole and rim.
+      cx   = size / 2;
+      cy   = size / 2;
+      hole = holeRadius * holeRadius;
+      rim  = radius * radius;
+      for (i = j = 0; i < alive; i++)
+      {
+         s  = spiral[i];
+         px = (double)(locationX[i] - cx);
+         py = (double)(locationY[i] - cy);
+         x2 = (int)(px * stepXX[s] + py * stepXY[s]) + cx;
+         y2 = (int)(px * stepYX[s] + py * stepYY[s]) + cy;
+         k  = ++index[i];
+         if (k < spiralX[s].length)
+         {
+            x2 += (double)(spiralX[s][k] - x2) * spiralConverge;
+            y2 += (double)(spiralY[s][k] - y2) * spiralConverge;
+         }
+         if ((x2 >= 0) && (x2 < size) && (y2 >= 0) && (y2 < size))
+         {
+            dx = x2 - cx;
+            dy = y2 - cy;
+            d  = (dx * dx) + (dy * dy);
+            if ((d > hole) && (d < rim))
+            {
+               ids[j]       = ids[i];
+               locationX[j] = x2;
+               locationY[j] = y2;
+               spiral[j]    = s;
+               index[j]     = k;
+               j++;
+            }
+         }
+      }
+      alive = j;
+
+      // Place fragments spiral by spiral, in fragment order within each.
+      for (s = 0; s <= numSpiral; s++) { spiralStart[s] = 0; }
+      for (i = 0; i < alive; i++) { spiralStart[spiral[i] + 1]++; }
+      for (s = 0; s < numSpiral; s++) { spiralStart[s + 1] += spiralStart[s]; }
+      for (i = 0; i < alive; i++)
+      {
+         k           = spiralStart[spiral[i]]++;
+         placeIds[k] = ids[i];
+         placeX[k]   = locationX[i];
+         placeY[k]   = locationY[i];
+      }
+      placements = alive;
+
+      return(alive == 0);
+   }
+
+
+   // Render image of latest flush.
+   public BufferedImage render()
+   {
+      return(renderer.render(placements, placeIds, placeX, placeY));
+   }
+
+
+   // Render image of latest flush into size x size pixels.
+   public void render(int[] pixels)
+   {
+      renderer.render(pixels, 0, placements, placeIds, placeX, placeY);
+   }
+
+
+   // Render image of placements saved from any flush into size x size
+   // pixels. Placements start at the given index of the arrays.
+   // Safe to call from several threads at once.
+   public void render(int[] pixels, int start, int count, int[] ids, int[] x, int[] y)
+   {
+      renderer.render(pixels, start, count, ids, x, y);
+   }
+
+
+   // Euclidean distance
+   public double edist(double x1, double y1, double x2, double y2)
+   {
+      double d, t;
+
+      t  = x1 - x2;
+      t *= t;
+      d  = t;
+      t  = y1 - y2;
+      t *= t;
+      d += t;
+      return(Math.sqrt(d));
+   }
+}
@@ -0,0 +1,71 @@
+/*
+ *
+ * FlushFormat.java
+ *
+ * FlushCassette file format.
+ *
+ */
+
+package graffitv;
+
+// Cassette format constants, shared by the writer, reader and player.
+// A plain class, so recording and reading cassettes headless loads no
+// applet classes.
+public class FlushFormat
+{
+   // A version 1 cassette is a GZIP compressed object stream holding
+   // the header and every pixel of every frame. Later versions start
+   // with MAGIC and a version number followed by the header and a
+   // sequence of chunks, each chunk being a length and an independently
+   // compressed run of frame records beginning with a key frame.
+   // A key frame holds all pixels; a delta frame holds only the spans
+   // of pixels that changed since the previous frame. Alternatively an
+   // atlas record holds the source image and its fragments, after which
+   // a placement frame holds only the locations of fragments to draw
+   // and a source frame stands for the source image itself. A procedure
+   // record holds the source image and flush parameters, from which the
+   // player synthesizes all frames. From version 3 the chunks end with
+   // a -1 length followed by an index of chunk offsets and lengths, the
+   // chunk holding the atlas or procedure, and the chunk and show time
+   // of each frame, and finally the index offset and MAGIC, so a reader
+   // can find any frame without decoding the frames before its chunk.
+   // From version 4 the header ends with the id of the FlushCodec that
+   // compresses the chunks; earlier chunks are GZIP compressed. From
+   // version 5 frames may be in indexed colour: a palette record, in the
+   // chunk indexed as the atlas or procedure would be, holds up to 256
+   // colours, and indexed key and delta frames hold a byte per pixel.
+   // From version 6 an annulus record in that chunk holds, for each row,
+   // the spans of pixels between the hole and the cassette rim, and an
+   // annulus key frame holds only those pixels, the rest being black.
+   // From version 7 a frame identical to the one before it is merged
+   // into it, adding to its show time, and a frame identical to an
+   // earlier one is a repeat record naming that frame, indexed by -1
+   // minus its number in place of a chunk; a repeat leaves the frame
+   // that following deltas apply to unchanged.
+   static final byte[] MAGIC   = { 'F', 'L', 'S', 'H' };
+   static final int    VERSION = 7;
+   static final int    KEY_FRAME          = 0;
+   static final int    DELTA_FRAME        = 1;
+   static final int    ATLAS              = 2;
+   static final int    SOURCE_FRAME       = 3;
+   static final int    PLACEMENT_FRAME    = 4;
+   static final int    PROCEDURE          = 5;
+   static final int    PALETTE            = 6;
+   static final int    INDEXED_KEY_FRAME  = 7;
+   static final int    INDEXED_DELTA      = 8;
+   static final int    ANNULUS            = 9;
+   static final int    ANNULUS_KEY_FRAME  = 10;
+   static final int    INDEXED_ANNULUS    = 11;
+   static final int    REPEAT_FRAME       = 12;
+   static final int    DELTA_SPAN_GAP     = 2;
+
+   // Default frames between key frames, chosen by recorded sizes: a full
+   // colour flush is smallest as one key frame and its deltas, whereas
+   // indexed colour deltas compress worse than indexed key frames.
+   static final int KEY_FRAME_INTERVAL         = 30;
+   static final int INDEXED_KEY_FRAME_INTERVAL = 1;
+
+   // Bytes of frame data read or written at a time: frames move as
+   // blocks of big-endian ints rather than one int per call.
+   static final int BLOCK_SIZE = 65536;
+}
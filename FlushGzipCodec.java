@@ -0,0 +1,76 @@
+/*
+ *
+ * FlushGzipCodec.java
+ *
+ * GZIP compression of FlushCassette chunks.
+ *
+ */
+
+package graffitv;
+
+import java.io.*;
+import java.nio.*;
+import java.util.zip.*;
+
+// GZIP codec: the default, and the only codec of cassettes recorded
+// before codecs were selectable.
+public class FlushGzipCodec extends FlushCodec
+{
+   public int id()
+   {
+      return(GZIP);
+   }
+
+
+   public String name()
+   {
+      return("gzip");
+   }
+
+
+   public byte[] compress(byte[] records, final int level) throws IOException
+   {
+      ByteArrayOutputStream bytes;
+      GZIPOutputStream      out;
+
+      bytes = new ByteArrayOutputStream(records.length / 4 + 64);
+      out   = new GZIPOutputStream(bytes)
+      {
+         {
+            def.setLevel(level);
+         }
+      };
+      out.write(records);
+      out.close();
+      return(bytes.toByteArray());
+   }
+
+
+   // Decompress, sized by the uncompressed length at the chunk's end,
+   // which deflate cannot make more than 1032 times the chunk's length.
+   public byte[] decompress(ByteBuffer chunk) throws IOException
+   {
+      DataInputStream in;
+      byte[]          records;
+      int             n;
+
+      if ((n = chunk.limit() - 4) < 0) { throw new IOException("Invalid chunk"); }
+      n = (chunk.get(n) & 0xff) | ((chunk.get(n + 1) & 0xff) << 8) |
+          ((chunk.get(n + 2) & 0xff) << 16) | ((chunk.get(n + 3) & 0xff) << 24);
+      if ((n < 0) || (n / 1032 > chunk.limit()) || (chunk.get(0) != (byte)0x1f) ||
+          (chunk.get(1) != (byte)0x8b))
+      {
+         throw new IOException("Invalid chunk");
+      }
+      records = new byte[n];
+      in      = new DataInputStream(new GZIPInputStream(new FlushReader.BufferInputStream(chunk)));
+      try
+      {
+         in.readFully(records);
+      }
+      finally {
+         in.close();
+      }
+      return(records);
+   }
+}
@@ -0,0 +1,182 @@
+/*
+ *
+ * FlushLZCodec.java
+ *
+ * Fast LZ compression of FlushCassette chunks.
+ *
+ */
+
+package graffitv;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+// LZ codec: byte oriented LZ77 in the manner of LZ4, trading size for
+// decompression that is little more than array copies.
+// A chunk is the records' length followed by sequences, each a token
+// holding literal and match length nibbles, any further literal length
+// bytes, the literals, a two byte little-endian match offset and any
+// further match length bytes. A nibble of 15 continues in bytes, each
+// added, up to one below 255. Matches are at least MIN_MATCH bytes.
+// The last sequence has literals only.
+public class FlushLZCodec extends FlushCodec
+{
+   static final int MIN_MATCH  = 4;
+   static final int MAX_OFFSET = 65535;
+   static final int HASH_BITS  = 16;
+
+   public int id()
+   {
+      return(LZ);
+   }
+
+
+   public String name()
+   {
+      return("lz");
+   }
+
+
+   public byte[] compress(byte[] records, int level)
+   {
+      byte[] out;
+      int[]  table;
+      int    n, ip, op, anchor, ref, h, len, misses;
+
+      n   = records.length;
+      out = new byte[4 + n + (n / 255) + 16];
+      out[0] = (byte)(n >>> 24);
+      out[1] = (byte)(n >>> 16);
+      out[2] = (byte)(n >>> 8);
+      out[3] = (byte)n;
+      op     = 4;
+
+      // Find matches through a table of the last position, plus one,
+      // of each hashed four bytes. Misses speed up the scan through
+      // incompressible data.
+      table  = new int[1 << HASH_BITS];
+      ip     = anchor = misses = 0;
+      while (ip <= n - MIN_MATCH)
+      {
+         h        = hash(records, ip);
+         ref      = table[h] - 1;
+         table[h] = ip + 1;
+         if ((ref < 0) || ((ip - ref) > MAX_OFFSET) ||
+             (records[ref] != records[ip]) || (records[ref + 1] != records[ip + 1]) ||
+             (records[ref + 2] != records[ip + 2]) || (records[ref + 3] != records[ip + 3]))
+         {
+            ip += 1 + (misses++ >> 6);
+            continue;
+         }
+         for (len = MIN_MATCH; (ip + len < n) && (records[ref + len] == records[ip + len]); len++) {}
+         op     = sequence(records, anchor, ip - anchor, ip - ref, len, out, op);
+         ip    += len;
+         anchor = ip;
+         misses = 0;
+      }
+      op = sequence(records, anchor, n - anchor, 0, 0, out, op);
+      return(Arrays.copyOf(out, op));
+   }
+
+
+   // Hash four bytes.
+   private static int hash(byte[] b, int i)
+   {
+      int v;
+
+      v = (b[i] & 0xff) | ((b[i + 1] & 0xff) << 8) | ((b[i + 2] & 0xff) << 16) | (b[i + 3] << 24);
+      return((v * -1640531535) >>> (32 - HASH_BITS));
+   }
+
+
+   // Write sequence of literals and match, or literals only if the
+   // match length is 0. Returns output position after it.
+   private static int sequence(byte[] records, int start, int literals, int offset, int match,
+                               byte[] out, int op)
+   {
+      int m, token;
+
+      m     = (match > 0) ? match - MIN_MATCH : 0;
+      token = op++;
+      out[token] = (byte)((Math.min(literals, 15) << 4) | Math.min(m, 15));
+      op = length(literals, out, op);
+      System.arraycopy(records, start, out, op, literals);
+      op += literals;
+      if (match > 0)
+      {
+         out[op++] = (byte)offset;
+         out[op++] = (byte)(offset >>> 8);
+         op        = length(m, out, op);
+      }
+      return(op);
+   }
+
+
+   // Write length bytes continuing a nibble of 15.
+   private static int length(int len, byte[] out, int op)
+   {
+      if (len < 15) { return(op); }
+      for (len -= 15; len >= 255; len -= 255) { out[op++] = (byte)255; }
+      out[op++] = (byte)len;
+      return(op);
+   }
+
+
+   public byte[] decompress(ByteBuffer chunk) throws IOException
+   {
+      byte[] in, out;
+      int    n, ip, op, token, len, offset, b;
+
+      in = new byte[chunk.remaining()];
+      chunk.get(in);
+      try
+      {
+         n   = ((in[0] & 0xff) << 24) | ((in[1] & 0xff) << 16) | ((in[2] & 0xff) << 8) | (in[3] & 0xff);
+         if ((n < 0) || (n / 255 > in.length)) { throw new IOException("Corrupt chunk"); }
+         out = new byte[n];
+         ip  = 4;
+         op  = 0;
+         while (true)
+         {
+            // Literals.
+            token = in[ip++] & 0xff;
+            len   = token >>> 4;
+            if (len == 15)
+            {
+               do { len += (b = in[ip++] & 0xff); } while (b == 255);
+            }
+            System.arraycopy(in, ip, out, op, len);
+            ip += len;
+            op += len;
+            if (op == n) { break; }
+
+            // Match, copied forward byte by byte where it overlaps itself.
+            offset = (in[ip++] & 0xff) | ((in[ip++] & 0xff) << 8);
+            len    = token & 15;
+            if (len == 15)
+            {
+               do { len += (b = in[ip++] & 0xff); } while (b == 255);
+            }
+            len += MIN_MATCH;
+            if ((offset == 0) || (offset > op) || (op + len > n))
+            {
+               throw new IOException("Corrupt chunk");
+            }
+            if (offset >= len)
+            {
+               System.arraycopy(out, op - offset, out, op, len);
+               op += len;
+            }
+            else
+            {
+               for (len += op; op < len; op++) { out[op] = out[op - offset]; }
+            }
+         }
+      }
+      catch (RuntimeException e) {
+         throw new IOException("Corrupt chunk");
+      }
+      return(out);
+   }
+}
@@ -0,0 +1,248 @@
+/*
+ *
+ * FlushPalette.java
+ *
+ * Colour palette of FlushCassette indexed colour frames.
+ *
+ */
+
+package graffitv;
+
+import java.util.*;
+
+// Palette of at most 256 colours for indexed colour frames.
+// Flush frames show only colours of the source image, the white cassette
+// and the black hole, so a palette built from those covers every frame.
+// It is exact if they number 256 or fewer; otherwise the source colours
+// are reduced by median cut, keeping white and black exact, and maxError
+// tells how far a colour channel may be moved.
+public class FlushPalette
+{
+   static final int SIZE  = 256;
+   static final int BLACK = 0xff000000;
+   static final int WHITE = 0xffffffff;
+
+   // Palette colours.
+   int[] colors;
+
+   // Largest difference of a colour channel from its palette colour.
+   int maxError;
+
+   // Colour to palette index hash table.
+   private int[]     keys;
+   private byte[]    values;
+   private boolean[] used;
+   private int       shift;
+
+   // Constructor: build palette from opaque source image pixels.
+   public FlushPalette(int[] source)
+   {
+      int[] sorted, unique, counts;
+      int   i, n;
+
+      // Count distinct colours.
+      sorted = new int[source.length + 2];
+      System.arraycopy(source, 0, sorted, 0, source.length);
+      sorted[source.length]     = BLACK;
+      sorted[source.length + 1] = WHITE;
+      Arrays.sort(sorted);
+      unique = new int[sorted.length];
+      counts = new int[sorted.length];
+      for (i = n = 0; i < sorted.length; i++)
+      {
+         if ((n == 0) || (unique[n - 1] != sorted[i])) { unique[n++] = sorted[i]; }
+         counts[n - 1]++;
+      }
+
+      // Hash table of distinct colours.
+      for (shift = 32; (1 << (32 - shift)) < (n * 2); shift--) {}
+      keys   = new int[1 << (32 - shift)];
+      values = new byte[keys.length];
+      used   = new boolean[keys.length];
+
+      if (n <= SIZE)
+      {
+         colors = Arrays.copyOf(unique, n);
+         for (i = 0; i < n; i++) { put(unique[i], i); }
+      }
+      else
+      {
+         reduce(unique, counts, n);
+      }
+   }
+
+
+   // Reduce colours to palette by median cut.
+   private void reduce(int[] unique, int[] counts, int n)
+   {
+      int[] c, w, start, end, range, channel, sortC, sortW, bins;
+      int   i, j, m, boxes, best, total, half, r, g, b;
+      long  sr, sg, sb, sw;
+
+      // Cut all but white and black, which keep palette entries of their own.
+      c = new int[n];
+      w = new int[n];
+      for (i = j = 0; i < n; i++)
+      {
+         if ((unique[i] == BLACK) || (unique[i] == WHITE)) { continue; }
+         c[j] = unique[i];
+         w[j] = counts[i];
+         j++;
+      }
+      n     = j;
+      start   = new int[SIZE - 2];
+      end     = new int[SIZE - 2];
+      range   = new int[SIZE - 2];
+      channel = new int[SIZE - 2];
+      sortC   = new int[n];
+      sortW   = new int[n];
+      bins    = new int[257];
+      start[0] = 0;
+      end[0]   = n;
+      measure(c, 0, n, range, channel, 0);
+      for (boxes = 1; boxes < start.length; boxes++)
+      {
+         // Split box with the widest channel range at its weighted median.
+         best = 0;
+         for (i = 1; i < boxes; i++)
+         {
+            if (range[i] > range[best]) { best = i; }
+         }
+         if (range[best] == 0) { break; }
+
+         // Counting sort box by channel.
+         Arrays.fill(bins, 0);
+         for (j = start[best]; j < end[best]; j++) { bins[((c[j] >> channel[best]) & 0xff) + 1]++; }
+         for (j = 1; j < bins.length; j++) { bins[j] += bins[j - 1]; }
+         for (j = start[best]; j < end[best]; j++)
+         {
+            m        = start[best] + bins[(c[j] >> channel[best]) & 0xff]++;
+            sortC[m] = c[j];
+            sortW[m] = w[j];
+         }
+         System.arraycopy(sortC, start[best], c, start[best], end[best] - start[best]);
+         System.arraycopy(sortW, start[best], w, start[best], end[best] - start[best]);
+
+         // Split after the colour reaching half the weight, but before
+         // the last colour, leaving both halves colours.
+         for (total = 0, j = start[best]; j < end[best]; j++) { total += w[j]; }
+         half = 0;
+         for (m = start[best]; m < end[best] - 1; m++)
+         {
+            half += w[m];
+            if ((half * 2) >= total) { break; }
+         }
+         m = Math.min(m + 1, end[best] - 1);
+         start[boxes] = m;
+         end[boxes]   = end[best];
+         end[best]    = m;
+         measure(c, start[best], end[best], range, channel, best);
+         measure(c, start[boxes], end[boxes], range, channel, boxes);
+      }
+
+      // Palette colour of each box is its weighted mean.
+      colors    = new int[boxes + 2];
+      colors[0] = BLACK;
+      colors[1] = WHITE;
+      put(BLACK, 0);
+      put(WHITE, 1);
+      for (i = 0; i < boxes; i++)
+      {
+         sr = sg = sb = sw = 0;
+         for (j = start[i]; j < end[i]; j++)
+         {
+            sr += (long)((c[j] >> 16) & 0xff) * w[j];
+            sg += (long)((c[j] >> 8) & 0xff) * w[j];
+            sb += (long)(c[j] & 0xff) * w[j];
+            sw += w[j];
+         }
+         if (sw == 0) { continue; }
+         r = (int)((sr + (sw / 2)) / sw);
+         g = (int)((sg + (sw / 2)) / sw);
+         b = (int)((sb + (sw / 2)) / sw);
+         colors[i + 2] = 0xff000000 | (r << 16) | (g << 8) | b;
+         for (j = start[i]; j < end[i]; j++)
+         {
+            put(c[j], i + 2);
+            maxError = Math.max(maxError, error(c[j], colors[i + 2]));
+         }
+      }
+   }
+
+
+   // Find widest channel range of colours from start up to end.
+   private static void measure(int[] c, int start, int end, int[] range, int[] channel, int box)
+   {
+      int i, k, min, max, v;
+
+      range[box]   = 0;
+      channel[box] = 0;
+      for (k = 0; k < 24; k += 8)
+      {
+         min = 255;
+         max = 0;
+         for (i = start; i < end; i++)
+         {
+            v   = (c[i] >> k) & 0xff;
+            min = Math.min(min, v);
+            max = Math.max(max, v);
+         }
+         if (max - min > range[box])
+         {
+            range[box]   = max - min;
+            channel[box] = k;
+         }
+      }
+   }
+
+
+   // Largest channel difference of colours.
+   private static int error(int c1, int c2)
+   {
+      return(Math.max(Math.abs(((c1 >> 16) & 0xff) - ((c2 >> 16) & 0xff)),
+                      Math.max(Math.abs(((c1 >> 8) & 0xff) - ((c2 >> 8) & 0xff)),
+                               Math.abs((c1 & 0xff) - (c2 & 0xff)))));
+   }
+
+
+   // Add colour to hash table.
+   private void put(int color, int index)
+   {
+      int i;
+
+      for (i = (color * -1640531535) >>> shift; used[i]; i = (i + 1) & (keys.length - 1)) {}
+      keys[i]   = color;
+      values[i] = (byte)index;
+      used[i]   = true;
+   }
+
+
+   // Get palette index of colour, the nearest palette colour for a
+   // colour not in the source image.
+   public int index(int color)
+   {
+      int i, j, d, best, nearest;
+
+      for (i = (color * -1640531535) >>> shift; used[i]; i = (i + 1) & (keys.length - 1))
+      {
+         if (keys[i] == color) { return(values[i] & 0xff); }
+      }
+      best    = Integer.MAX_VALUE;
+      nearest = 0;
+      for (j = 0; j < colors.length; j++)
+      {
+         i  = ((color >> 16) & 0xff) - ((colors[j] >> 16) & 0xff);
+         d  = i * i;
+         i  = ((color >> 8) & 0xff) - ((colors[j] >> 8) & 0xff);
+         d += i * i;
+         i  = (color & 0xff) - (colors[j] & 0xff);
+         d += i * i;
+         if (d < best)
+         {
+            best    = d;
+            nearest = j;
+         }
+      }
+      return(nearest);
+   }
+}
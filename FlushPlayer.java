@@ -9,6 +9,8 @@
  * <applet code="FlushPlayer.class" width=w height=h>
  * [<param name=load value="<FlushCassette file|URL>">]
  * [<param name=choice<n> value="<FlushCassette file|URL>"> (repeat)]
+ * [<param name=size value="<procedural cassette frame size (pixels)>">]
+ * [<param name=flush_delay value="<procedural cassette flush delay (ms)>">]
  * </applet>
  *
  */
@@ -44,6 +46,8 @@ public class FlushPlayer extends Applet
    private Panel             masterPanel;
    private String            loadFilename;
    private ArrayList<String> choiceList;
+   private int               cassetteSize = -1;
+   private int               flushDelay   = -1;
 
    // Initialize.
    public void init()
@@ -60,6 +64,24 @@ public class FlushPlayer extends Applet
          context = null;
       }
 
+      // Get procedural cassette frame size and flush delay.
+      if (cassetteSize == -1)
+      {
+         try
+         {
+            cassetteSize = Integer.parseInt(getParameter("size"));
+         }
+         catch (Exception e) {}
+      }
+      if (flushDelay == -1)
+      {
+         try
+         {
+            flushDelay = Integer.parseInt(getParameter("flush_delay"));
+         }
+         catch (Exception e) {}
+      }
+
       // Load blank cassette.
       cassette = new FlushCassette();
 
@@ -92,6 +114,9 @@ public class FlushPlayer extends Applet
 
 
    // Flush viewer.
+   // A thread runs only while a flush plays, drawing frames through a
+   // double buffered strategy; when idle the viewer is painted by AWT
+   // alone, so an idle player wakes for nothing.
    class FlushViewer extends Canvas implements Runnable
    {
       private Dimension size;
@@ -102,7 +127,10 @@ public class FlushPlayer extends Applet
       private final int FLUSHING = 1;
       private int       state    = IDLE;
 
-      private final int DEFAULT_TIMER = 500;
+      // Flush started, and frames dropped by playback falling behind
+      // in all flushes.
+      private boolean started;
+      private int     dropped;
 
       // Constructor.
       public FlushViewer(Dimension d)
@@ -112,36 +140,64 @@ public class FlushPlayer extends Applet
       }
 
 
-      // Start.
+      // Start: show the current frame.
       public void start()
       {
-         if (thread == null)
-         {
-            thread = new Thread(this);
-            thread.setPriority(Thread.MIN_PRIORITY);
-            thread.start();
-         }
+         repaint();
       }
 
 
-      // Stop.
+      // Stop, ending any flush.
       public synchronized void stop()
       {
          thread = null;
       }
 
 
-      // Flush.
-      public void flush()
+      // Flush, starting a thread to play it unless one is playing.
+      public synchronized void flush()
       {
          if (cassette.first() != null)
          {
-            state = FLUSHING;
+            started = true;
+            state   = FLUSHING;
             cassette.play();
+            if (thread == null)
+            {
+               thread = new Thread(this);
+               thread.setPriority(Thread.MIN_PRIORITY);
+               thread.start();
+            }
          }
       }
 
 
+      // Get number of frames dropped.
+      public int dropped()
+      {
+         return(dropped);
+      }
+
+
+      // Create buffer strategy once displayable.
+      public void addNotify()
+      {
+         super.addNotify();
+         try
+         {
+            createBufferStrategy(2);
+         }
+         catch (Exception e) {}
+      }
+
+
+      // Update: paint over the frame without clearing it first.
+      public void update(Graphics g)
+      {
+         paint(g);
+      }
+
+
       // Paint.
       public void paint(Graphics g)
       {
@@ -159,44 +215,142 @@ public class FlushPlayer extends Applet
       }
 
 
-      // Run.
+      // Run flush, painting frames until it ends.
+      // Each frame is due when the show times of the frames before it
+      // have passed since the flush started, timed by System.nanoTime,
+      // so paint time and sleep jitter do not accumulate. A frame whose
+      // show time has wholly passed by then is skipped and counted as
+      // dropped. Time spent waiting for a frame still being loaded
+      // delays the frames after it rather than dropping them.
       public void run()
       {
-         Thread   me;
-         Graphics g;
+         Thread              me;
+         FlushCassette       c;
+         FlushCassette.Frame f;
+         long                due, blocked;
+         int                 shown, skipped;
 
          if ((me = Thread.currentThread()) != thread) { return; }
 
          // Action loop.
-         while (thread == me)
+         due   = 0;
+         shown = skipped = 0;
+         while (true)
          {
-            if ((g = getGraphics()) != null)
+            // Get frame to show, starting over if the flush restarted.
+            synchronized (this)
             {
-               paint(g);
+               c = cassette;
+               f = null;
+               if ((thread == me) && (state != IDLE))
+               {
+                  if (started)
+                  {
+                     started = false;
+                     c.first();
+                     due     = System.nanoTime();
+                     shown   = skipped = 0;
+                  }
+                  f = c.current();
+               }
+               if ((f == null) && (thread == me))
+               {
+                  state  = IDLE;
+                  thread = null;
+               }
             }
+            showFrame();
+            if (f == null) { return; }
 
+            shown++;
+            due += f.show * 1000000L;
             try
             {
-               if (state == IDLE)
+               sleepUntil(due);
+            }
+            catch (InterruptedException e) {
+               synchronized (this)
                {
-                  Thread.sleep(DEFAULT_TIMER);
+                  if (thread == me) { thread = null; }
                }
-               else
-               {
-                  Thread.sleep(cassette.current().show);
+               return;
+            }
 
-                  // Get next animation frame.
-                  if (cassette.next() == null)
+            // Get next animation frame that is not already over, unless
+            // the flush restarted. Time spent waiting for a frame to be
+            // loaded does not count against it.
+            while (true)
+            {
+               synchronized (this)
+               {
+                  if (started) { break; }
+               }
+               blocked = System.nanoTime();
+               f       = c.next();
+               due    += System.nanoTime() - blocked;
+               if ((f == null) || (f.show * 1000000L > System.nanoTime() - due)) { break; }
+               due += f.show * 1000000L;
+               skipped++;
+            }
+            if (f == null)
+            {
+               synchronized (this)
+               {
+                  if (!started)
                   {
-                     cassette.first();
-                     cassette.stop();
-                     state = IDLE;
+                     c.first();
+                     c.stop();
+                     state    = IDLE;
+                     dropped += skipped;
+                     c.status("Flushed " + shown + " frames, " + skipped + " dropped");
                   }
                }
             }
-            catch (InterruptedException e) { break; }
          }
-         thread = null;
+      }
+
+
+      // Show current frame through the buffer strategy, repainting
+      // buffers whose contents were lost, else paint it directly.
+      private void showFrame()
+      {
+         BufferStrategy strategy;
+         Graphics       g;
+
+         if ((strategy = getBufferStrategy()) == null)
+         {
+            if ((g = getGraphics()) != null)
+            {
+               paint(g);
+               g.dispose();
+            }
+            return;
+         }
+         do
+         {
+            do
+            {
+               g = strategy.getDrawGraphics();
+               paint(g);
+               g.dispose();
+            }
+            while (strategy.contentsRestored());
+            strategy.show();
+         }
+         while (strategy.contentsLost());
+         Toolkit.getDefaultToolkit().sync();
+      }
+
+
+      // Sleep until the given System.nanoTime.
+      private void sleepUntil(long time) throws InterruptedException
+      {
+         long wait;
+
+         while ((wait = time - System.nanoTime()) > 0)
+         {
+            Thread.sleep(wait / 1000000L, (int)(wait % 1000000L));
+         }
       }
    }      // End FlushViewer class.
 
@@ -252,9 +406,11 @@ public class FlushPlayer extends Applet
          if (Thread.currentThread() != thread) { return; }
 
          // "Eject" cassette.
+         cassette.close();
          c        = new FlushCassette();
          cassette = c;
          title.setText(cassette.title());
+         viewer.repaint();
 
          if (file == null)
          {
@@ -265,7 +421,7 @@ public class FlushPlayer extends Applet
          title.setText("Loading...");
          try
          {
-            c = new FlushCassette(file, context);
+            c = new FlushCassette(file, context, cassetteSize, flushDelay);
          }
          catch (IOException e) {
             title.setText("Load failed: " + e.getMessage());
@@ -275,6 +431,7 @@ public class FlushPlayer extends Applet
          // Replace playing cassette.
          cassette = c;
          title.setText(cassette.title());
+         viewer.repaint();
 
          // Stop load thread.
          stop();
@@ -390,7 +547,9 @@ public class FlushPlayer extends Applet
       "Usage:\n" +
       "    java graffitv.FlushPlayer\n" +
       "        [-loadCassette <file name> (cassette to load)]\n" +
-      "        [-cassetteChoices <comma-separated list of cassette names>]";
+      "        [-cassetteChoices <comma-separated list of cassette names>]\n" +
+      "        [-cassetteSize <procedural cassette frame size (pixels)>]\n" +
+      "        [-flushDelay <procedural cassette flush delay (ms)>]";
 
    // Main.
    @SuppressWarnings("deprecation")
@@ -431,6 +590,46 @@ public class FlushPlayer extends Applet
             }
             continue;
          }
+         if (args[i].equals("-cassetteSize"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid cassetteSize option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            try
+            {
+               player.cassetteSize = Integer.parseInt(args[i]);
+            }
+            catch (NumberFormatException e) {
+               System.err.println("Invalid cassetteSize option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-flushDelay"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid flushDelay option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            try
+            {
+               player.flushDelay = Integer.parseInt(args[i]);
+            }
+            catch (NumberFormatException e) {
+               System.err.println("Invalid flushDelay option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
          if (args[i].equals("-help"))
          {
             System.out.println(Usage);
@@ -0,0 +1,876 @@
+/*
+ *
+ * FlushReader.java
+ *
+ * Random access reader of FlushCassette files.
+ *
+ */
+
+package graffitv;
+
+import java.awt.*;
+import java.awt.image.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Read frames of a chunked cassette in any order.
+// The cassette is memory mapped and located through the index at its
+// end, so opening it decodes no frames, and getting a frame decodes only
+// the chunk holding it, from the key frame starting the chunk up to the
+// frame. Cassettes without an index are indexed by scanning their chunks.
+public class FlushReader
+{
+   // Header.
+   private String title;
+   private String soundFile;
+   private int    size;
+
+   // Index.
+   private ByteBuffer buffer;
+   private int[]      chunkOffset;
+   private int[]      chunkLength;
+   private int[]      chunkFirst;
+   private int        sourceChunk;
+   private int[]      frameChunk;
+   private int[]      frameShow;
+   private int[]      frameOriginal;
+   private int        frameCount;
+
+   // Decoding state.
+   private int             chunk;      // Chunk being decoded.
+   private DataInputStream chunkIn;    // Chunk record stream.
+   private int             frame;      // Last decoded frame.
+   private int             show;       // Its show time.
+   private int[]           pixels;     // Its pixels.
+   private BufferedImage   image;      // Its image.
+   private int[]           source;     // Source image pixels.
+   private int[]           palette;    // Indexed colour palette.
+   private int[]           annulus;    // Annulus spans of each row.
+   private int             original;   // Frame repeated by last record.
+   private boolean[]       repeated;   // Frames repeated later.
+   private Hashtable       originals;  // Their images, shared by repeats.
+   private FlushRenderer   renderer;   // Placement frame renderer.
+   private int             fragments;  // Its atlas fragment count.
+   private byte[]          block;      // Frame data block.
+   private ByteBuffer      blockBytes; // Its bytes.
+   private IntBuffer       blockInts;  // Its ints.
+   private Future[]        inflating;  // Chunks being inflated ahead.
+   private FlushCodec      codec;      // Chunk codec.
+
+   // Procedural cassette.
+   private boolean     procedural;
+   private int         synthesisSize;
+   private int         synthesisDelay;
+   private int         holeSize, fragmentSize, rotationIncrement, numSpiral;
+   private double      minSpiral, maxSpiral, spiralConverge;
+   private long        randomSeed;
+   private int         flushTimer, rechargeTimer;
+   private FlushEngine engine;
+   private boolean     flushed;
+
+   // Open memory mapped cassette file.
+   public FlushReader(File file) throws IOException
+   {
+      this(file, -1, -1);
+   }
+
+
+   // Open memory mapped cassette file with size and flush delay of
+   // synthesized frames, applying only to procedural cassettes; -1
+   // keeps the recorded values.
+   public FlushReader(File file, int synthesisSize, int synthesisDelay) throws IOException
+   {
+      FileInputStream in;
+      FileChannel     channel;
+
+      in = new FileInputStream(file);
+      try
+      {
+         channel = in.getChannel();
+         buffer  = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      }
+      finally {
+         in.close();
+      }
+      this.synthesisSize  = synthesisSize;
+      this.synthesisDelay = synthesisDelay;
+      open();
+   }
+
+
+   // Open cassette held in buffer.
+   public FlushReader(ByteBuffer buffer, int synthesisSize, int synthesisDelay) throws IOException
+   {
+      this.buffer         = buffer;
+      this.synthesisSize  = synthesisSize;
+      this.synthesisDelay = synthesisDelay;
+      open();
+   }
+
+
+   // Read header and index.
+   private void open() throws IOException
+   {
+      DataInputStream in;
+      byte[]          magic;
+      int             version, start, end, index, i, j;
+
+      // Read header.
+      in    = new DataInputStream(new BufferInputStream(slice(0, buffer.limit())));
+      magic = new byte[FlushFormat.MAGIC.length];
+      in.readFully(magic);
+      if (!Arrays.equals(magic, FlushFormat.MAGIC))
+      {
+         throw new IOException("Not a chunked cassette");
+      }
+      version = in.readInt();
+      if ((version < 2) || (version > FlushFormat.VERSION))
+      {
+         throw new IOException("Unsupported cassette version " + version);
+      }
+      title     = readString(in);
+      soundFile = readString(in);
+      size      = in.readInt();
+      codec     = FlushCodec.codec((version >= 4) ? in.readUnsignedByte() : FlushCodec.GZIP);
+      if (codec == null) { throw new IOException("Unsupported cassette codec"); }
+      chunk     = -1;
+      frame     = -1;
+
+      // Read index from trailer, else scan chunks.
+      end = buffer.limit() - magic.length;
+      for (i = 0; i < magic.length; i++)
+      {
+         if ((end < 0) || (buffer.get(end + i) != magic[i])) { break; }
+      }
+      start = buffer.limit() - in.available();
+      if (i == magic.length)
+      {
+         // Chunks lie between the header and the index.
+         index = (end - 4 >= start) ? buffer.getInt(end - 4) : -1;
+         if ((index < start) || (index > end - 4))
+         {
+            throw new IOException("Invalid cassette index");
+         }
+         in = new DataInputStream(new BufferInputStream(slice(index, end - 4)));
+         j  = in.readInt();
+         if ((j < 0) || (j > in.available() / 8))
+         {
+            throw new IOException("Invalid cassette index");
+         }
+         chunkOffset = new int[j];
+         chunkLength = new int[j];
+         for (i = 0; i < j; i++)
+         {
+            chunkOffset[i] = in.readInt();
+            chunkLength[i] = in.readInt();
+            if ((chunkOffset[i] < start) || (chunkLength[i] < 0) ||
+                ((long)chunkOffset[i] + chunkLength[i] > index))
+            {
+               throw new IOException("Invalid cassette index");
+            }
+         }
+         sourceChunk = in.readInt();
+         frameCount  = in.readInt();
+         if ((sourceChunk < -1) || (sourceChunk >= j) ||
+             (frameCount < 0) || (frameCount > in.available() / 8))
+         {
+            throw new IOException("Invalid cassette index");
+         }
+         frameChunk    = new int[frameCount];
+         frameShow     = new int[frameCount];
+         frameOriginal = new int[frameCount];
+         for (i = 0; i < frameCount; i++)
+         {
+            frameChunk[i]    = in.readInt();
+            frameShow[i]     = in.readInt();
+            frameOriginal[i] = i;
+
+            // Repeats are in the chunk of the frame before.
+            if ((frameChunk[i] < 0) && (i > 0))
+            {
+               frameOriginal[i] = -1 - frameChunk[i];
+               frameChunk[i]    = frameChunk[i - 1];
+            }
+            if ((frameChunk[i] < 0) || (frameChunk[i] >= j))
+            {
+               throw new IOException("Invalid cassette index");
+            }
+         }
+      }
+      else
+      {
+         scan(in, start);
+      }
+      chunkFirst = new int[chunkOffset.length];
+      for (i = frameCount - 1; i >= 0; i--) { chunkFirst[frameChunk[i]] = i; }
+      repeated  = new boolean[frameCount];
+      originals = new Hashtable();
+      for (i = 0; i < frameCount; i++)
+      {
+         if (frameOriginal[i] == i) { continue; }
+         if ((frameOriginal[i] < 0) || (frameOriginal[i] >= i) ||
+             (frameOriginal[frameOriginal[i]] != frameOriginal[i]))
+         {
+            throw new IOException("Invalid repeat of frame " + frameOriginal[i]);
+         }
+         repeated[frameOriginal[i]] = true;
+      }
+
+      // Procedural cassettes have a source record and no stored frames.
+      if ((frameCount == 0) && (sourceChunk != -1))
+      {
+         openChunk(sourceChunk);
+         readRecord();
+      }
+   }
+
+
+   // Index cassette by scanning chunks following the header.
+   private void scan(DataInputStream in, int offset) throws IOException
+   {
+      Vector offsets, lengths, chunks, shows, repeats;
+      int    i, n, type;
+
+      offsets = new Vector();
+      lengths = new Vector();
+      while (true)
+      {
+         try
+         {
+            n = in.readInt();
+         }
+         catch (EOFException e) {
+            break;
+         }
+         // A chunk cut short ends the cassette.
+         if ((n < 0) || ((long)offset + 4 + n > buffer.limit())) { break; }
+         offsets.addElement(Integer.valueOf(offset + 4));
+         lengths.addElement(Integer.valueOf(n));
+         in.skipBytes(n);
+         offset += 4 + n;
+      }
+      chunkOffset = new int[offsets.size()];
+      chunkLength = new int[offsets.size()];
+      for (i = 0; i < chunkOffset.length; i++)
+      {
+         chunkOffset[i] = ((Integer)offsets.elementAt(i)).intValue();
+         chunkLength[i] = ((Integer)lengths.elementAt(i)).intValue();
+      }
+
+      // Decode chunks to find frames.
+      sourceChunk = -1;
+      chunks      = new Vector();
+      shows       = new Vector();
+      repeats     = new Vector();
+      for (i = 0; i < chunkOffset.length; i++)
+      {
+         openChunk(i);
+         while ((type = readRecord()) != -1)
+         {
+            if ((type == FlushFormat.ATLAS) || (type == FlushFormat.PROCEDURE) ||
+                (type == FlushFormat.PALETTE) || (type == FlushFormat.ANNULUS))
+            {
+               sourceChunk = i;
+            }
+            else
+            {
+               repeats.addElement(Integer.valueOf((type == FlushFormat.REPEAT_FRAME) ?
+                                                  original : chunks.size()));
+               chunks.addElement(Integer.valueOf(i));
+               shows.addElement(Integer.valueOf(show));
+            }
+         }
+      }
+      frameCount = chunks.size();
+      frameChunk    = new int[frameCount];
+      frameShow     = new int[frameCount];
+      frameOriginal = new int[frameCount];
+      for (i = 0; i < frameCount; i++)
+      {
+         frameChunk[i]    = ((Integer)chunks.elementAt(i)).intValue();
+         frameShow[i]     = ((Integer)shows.elementAt(i)).intValue();
+         frameOriginal[i] = ((Integer)repeats.elementAt(i)).intValue();
+      }
+      chunk = -1;
+   }
+
+
+   // Get title.
+   public String title()
+   {
+      return(title);
+   }
+
+
+   // Get sound file.
+   public String soundFile()
+   {
+      return(soundFile);
+   }
+
+
+   // Get frame XY size.
+   public int size()
+   {
+      return(size);
+   }
+
+
+   // Is cassette procedural?
+   public boolean procedural()
+   {
+      return(procedural);
+   }
+
+
+   // Get number of frames.
+   // Procedural cassettes are simulated to the end to count them.
+   public synchronized int frames()
+   {
+      FlushEngine e;
+
+      if (procedural && (frameCount == 0))
+      {
+         e = newEngine();
+         for (frameCount = 1; !e.flush(); frameCount++) {}
+         frameCount++;
+      }
+      return(frameCount);
+   }
+
+
+   // Get frame show time.
+   public synchronized int show(int n)
+   {
+      if (procedural)
+      {
+         if (n == 0) { return(flushTimer); }
+         if ((engine != null) && (n <= frame))
+         {
+            return(((n == frame) && flushed) ? rechargeTimer : flushTimer);
+         }
+         return((n == frames() - 1) ? rechargeTimer : flushTimer);
+      }
+      if ((n < 0) || (n >= frameCount)) { return(0); }
+      return(frameShow[n]);
+   }
+
+
+   // Is frame repeated by a later frame?
+   public synchronized boolean repeated(int n)
+   {
+      if (procedural || (n < 0) || (n >= frameCount)) { return(false); }
+      return(repeated[n]);
+   }
+
+
+   // Get frame image, or null past the last frame.
+   // A repeated frame's image is kept and shared by its repeats.
+   public synchronized BufferedImage image(int n) throws IOException
+   {
+      if (procedural) { return(synthesize(n)); }
+      if ((n < 0) || (n >= frameCount)) { return(null); }
+      if (frameOriginal[n] != n)
+      {
+         n = frameOriginal[n];
+         if (originals.containsKey(Integer.valueOf(n))) { return((BufferedImage)originals.get(Integer.valueOf(n))); }
+      }
+      if (n == frame) { return(image); }
+
+      // Decode from start of frame's chunk unless already on the way.
+      if ((frameChunk[n] != chunk) || (n < frame))
+      {
+         openChunk(frameChunk[n]);
+         frame = chunkFirst[chunk] - 1;
+      }
+      while (frame < n)
+      {
+         switch (readRecord())
+         {
+         case -1:
+            throw new IOException("Missing frame " + n);
+
+         case FlushFormat.ATLAS:
+         case FlushFormat.PROCEDURE:
+         case FlushFormat.PALETTE:
+         case FlushFormat.ANNULUS:
+            break;
+
+         default:
+            frame++;
+            if (repeated[frame]) { originals.put(Integer.valueOf(frame), image); }
+            break;
+         }
+      }
+      return(image);
+   }
+
+
+   // Synthesize procedural frame by running the flush engine to it.
+   private BufferedImage synthesize(int n)
+   {
+      if (n < 0) { return(null); }
+      if (n == 0) { return(FlushRenderer.image(source, size)); }
+      if ((engine == null) || (n < frame))
+      {
+         engine  = newEngine();
+         frame   = 0;
+         flushed = false;
+         image   = null;
+      }
+      while (frame < n)
+      {
+         if (flushed) { return(null); }
+         flushed = engine.flush();
+         frame++;
+         image = null;
+      }
+      if (image == null) { image = engine.render(); }
+      return(image);
+   }
+
+
+   // New flush engine for procedural cassette.
+   private FlushEngine newEngine()
+   {
+      return(new FlushEngine(source, size, holeSize, fragmentSize, rotationIncrement,
+                             numSpiral, minSpiral, maxSpiral, spiralConverge, randomSeed));
+   }
+
+
+   // Open chunk for decoding.
+   // When chunks are read in order, the chunks that follow are inflated
+   // ahead in parallel, one per pool thread.
+   private void openChunk(int c) throws IOException
+   {
+      byte[] bytes;
+      int    i, n;
+
+      if (chunkIn != null) { chunkIn.close(); }
+      if (inflating == null) { inflating = new Future[chunkOffset.length]; }
+      if (inflating[c] != null)
+      {
+         try
+         {
+            bytes = (byte[])inflating[c].get();
+         }
+         catch (InterruptedException e) {
+            throw new InterruptedIOException();
+         }
+         catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) { throw (IOException)e.getCause(); }
+            throw new IOException(e.getCause().toString());
+         }
+         inflating[c] = null;
+      }
+      else
+      {
+         bytes = codec.decompress(slice(chunkOffset[c], chunkOffset[c] + chunkLength[c]));
+      }
+      if (c == chunk + 1)
+      {
+         n = Math.min(c + Math.max(ForkJoinPool.getCommonPoolParallelism(), 1), chunkOffset.length - 1);
+         for (i = c + 1; i <= n; i++)
+         {
+            if (inflating[i] == null)
+            {
+               inflating[i] = ForkJoinPool.commonPool().submit(
+                  new Inflate(codec, slice(chunkOffset[i], chunkOffset[i] + chunkLength[i])));
+            }
+         }
+      }
+      else
+      {
+         Arrays.fill(inflating, null);
+      }
+      chunk   = c;
+      chunkIn = new DataInputStream(new ByteArrayInputStream(bytes));
+   }
+
+
+   // Chunk decompression task.
+   private static class Inflate implements Callable<byte[]>
+   {
+      private FlushCodec codec;
+      private ByteBuffer data;
+
+      public Inflate(FlushCodec codec, ByteBuffer data)
+      {
+         this.codec = codec;
+         this.data  = data;
+      }
+
+
+      public byte[] call() throws IOException
+      {
+         return(codec.decompress(data));
+      }
+   }
+
+
+   // Read and decode next record of chunk.
+   // Returns record type, or -1 at end of chunk.
+   private int readRecord() throws IOException
+   {
+      int        type, i, k, n;
+      int[]      ids, x, y;
+      ByteBuffer bytes;
+
+      try
+      {
+         type = chunkIn.readByte();
+      }
+      catch (EOFException e) {
+         return(-1);
+      }
+      switch (type)
+      {
+      case FlushFormat.ATLAS:
+         source = new int[size * size];
+         readInts(source, 0, source.length);
+         i = chunkIn.readInt();
+         k = chunkIn.readInt();
+         n = chunkIn.readInt();
+         if ((k <= 0) || (k > size) || (n < 0) || (n > size * size))
+         {
+            throw new IOException("Invalid atlas");
+         }
+         x = new int[n];
+         y = new int[n];
+         bytes = readBlock(n * 4);
+         for (n = 0; n < x.length; n++)
+         {
+            x[n] = bytes.getShort() & 0xffff;
+            y[n] = bytes.getShort() & 0xffff;
+            if ((x[n] > size - k) || (y[n] > size - k)) { throw new IOException("Invalid atlas"); }
+         }
+         renderer  = new FlushRenderer(size, i, k, source, x.length, x, y);
+         fragments = x.length;
+         return(type);
+
+      case FlushFormat.PROCEDURE:
+         readProcedure();
+         return(type);
+
+      case FlushFormat.PALETTE:
+         n = chunkIn.readInt();
+         if ((n < 1) || (n > FlushPalette.SIZE)) { throw new IOException("Invalid palette"); }
+         palette = new int[FlushPalette.SIZE];
+         readInts(palette, 0, n);
+         return(type);
+
+      case FlushFormat.ANNULUS:
+         annulus = new int[size * 4];
+         bytes   = readBlock(annulus.length * 2);
+         for (i = 0; i < annulus.length; i++)
+         {
+            annulus[i] = ((i / 4) * size) + (bytes.getShort() & 0xffff);
+         }
+         return(type);
+      }
+
+      show = chunkIn.readInt();
+      switch (type)
+      {
+      case FlushFormat.KEY_FRAME:
+         pixels = new int[size * size];
+         readInts(pixels, 0, pixels.length);
+         image = FlushRenderer.image(pixels, size);
+         break;
+
+      case FlushFormat.DELTA_FRAME:
+         if (pixels == null) { throw new IOException("Delta frame without key frame"); }
+         pixels = pixels.clone();
+         for (k = chunkIn.readInt(), i = 0; k > 0; k--)
+         {
+            i += chunkIn.readInt();
+            n  = chunkIn.readInt();
+            span(i, n);
+            readInts(pixels, i, n);
+            i += n;
+         }
+         image = FlushRenderer.image(pixels, size);
+         break;
+
+      case FlushFormat.INDEXED_KEY_FRAME:
+         loadPalette();
+         pixels = new int[size * size];
+         readIndices(pixels, 0, pixels.length);
+         image = FlushRenderer.image(pixels, size);
+         break;
+
+      case FlushFormat.INDEXED_DELTA:
+         if (pixels == null) { throw new IOException("Delta frame without key frame"); }
+         loadPalette();
+         pixels = pixels.clone();
+         for (k = chunkIn.readInt(), i = 0; k > 0; k--)
+         {
+            i += chunkIn.readInt();
+            n  = chunkIn.readInt();
+            span(i, n);
+            readIndices(pixels, i, n);
+            i += n;
+         }
+         image = FlushRenderer.image(pixels, size);
+         break;
+
+      case FlushFormat.ANNULUS_KEY_FRAME:
+      case FlushFormat.INDEXED_ANNULUS:
+         loadAnnulus();
+         if (type == FlushFormat.INDEXED_ANNULUS) { loadPalette(); }
+         pixels = new int[size * size];
+         Arrays.fill(pixels, FlushPalette.BLACK);
+         for (i = 0; i < annulus.length; i += 2)
+         {
+            if (type == FlushFormat.INDEXED_ANNULUS)
+            {
+               readIndices(pixels, annulus[i], annulus[i + 1] - annulus[i]);
+            }
+            else
+            {
+               readInts(pixels, annulus[i], annulus[i + 1] - annulus[i]);
+            }
+         }
+         image = FlushRenderer.image(pixels, size);
+         break;
+
+      case FlushFormat.SOURCE_FRAME:
+         loadSource();
+         pixels = null;
+         image  = FlushRenderer.image(source, size);
+         break;
+
+      case FlushFormat.PLACEMENT_FRAME:
+         loadSource();
+         n     = chunkIn.readInt();
+         if ((n < 0) || (n > size * size)) { throw new IOException("Invalid placements"); }
+         ids   = new int[n];
+         x     = new int[n];
+         y     = new int[n];
+         bytes = readBlock(n * 8);
+         for (i = 0; i < n; i++)
+         {
+            k      = Math.max(i - 1, 0);
+            ids[i] = ids[k] + bytes.getInt();
+            x[i]   = x[k] + bytes.getShort();
+            y[i]   = y[k] + bytes.getShort();
+            if ((ids[i] < 0) || (ids[i] >= fragments)) { throw new IOException("Invalid placements"); }
+         }
+         pixels = null;
+         image  = renderer.render(n, ids, x, y);
+         break;
+
+      case FlushFormat.REPEAT_FRAME:
+         original = chunkIn.readInt();
+         break;
+
+      default:
+         throw new IOException("Invalid frame type " + type);
+      }
+      return(type);
+   }
+
+
+   // Check delta span lies within the frame.
+   private void span(int offset, int length) throws IOException
+   {
+      if ((offset < 0) || (length < 0) || (length > pixels.length - offset))
+      {
+         throw new IOException("Invalid delta span");
+      }
+   }
+
+
+   // Read length bytes of chunk into the block buffer, growing it as
+   // needed, and return them.
+   private ByteBuffer readBlock(int length) throws IOException
+   {
+      if ((block == null) || (block.length < length))
+      {
+         block      = new byte[Math.max(length, FlushFormat.BLOCK_SIZE)];
+         blockBytes = ByteBuffer.wrap(block);
+         blockInts  = blockBytes.asIntBuffer();
+      }
+      chunkIn.readFully(block, 0, length);
+      ((Buffer)blockBytes).clear();
+      ((Buffer)blockBytes).limit(length);
+      return(blockBytes);
+   }
+
+
+   // Read ints of chunk a block at a time.
+   private void readInts(int[] values, int offset, int length) throws IOException
+   {
+      int n;
+
+      for ( ; length > 0; offset += n, length -= n)
+      {
+         n = Math.min(length, FlushFormat.BLOCK_SIZE / 4);
+         readBlock(n * 4);
+         ((Buffer)blockInts).clear();
+         blockInts.get(values, offset, n);
+      }
+   }
+
+
+   // Read palette indices of chunk a block at a time as pixels.
+   private void readIndices(int[] values, int offset, int length) throws IOException
+   {
+      int i, n;
+
+      for ( ; length > 0; offset += n, length -= n)
+      {
+         n = Math.min(length, FlushFormat.BLOCK_SIZE);
+         readBlock(n);
+         for (i = 0; i < n; i++) { values[offset + i] = palette[block[i] & 0xff]; }
+      }
+   }
+
+
+   // Load palette from source chunk if not yet read.
+   private void loadPalette() throws IOException
+   {
+      if (palette != null) { return; }
+      if (sourceChunk != -1) { readSource(); }
+      if (palette == null) { throw new IOException("Missing palette"); }
+   }
+
+
+   // Load annulus from source chunk if not yet read.
+   private void loadAnnulus() throws IOException
+   {
+      if (annulus != null) { return; }
+      if (sourceChunk != -1) { readSource(); }
+      if (annulus == null) { throw new IOException("Missing annulus"); }
+   }
+
+
+   // Load atlas from source chunk if not yet read.
+   private void loadSource() throws IOException
+   {
+      if (renderer != null) { return; }
+      if (sourceChunk != -1) { readSource(); }
+      if (renderer == null) { throw new IOException("Missing atlas"); }
+   }
+
+
+   // Read records of source chunk, returning to the chunk being decoded.
+   private void readSource() throws IOException
+   {
+      DataInputStream in;
+      int             c;
+
+      in = chunkIn;
+      c  = chunk;
+      chunkIn = null;
+      openChunk(sourceChunk);
+      while (readRecord() != -1) {}
+      chunkIn.close();
+      chunkIn = in;
+      chunk   = c;
+   }
+
+
+   // Read procedure record, rescaling to synthesis size.
+   private void readProcedure() throws IOException
+   {
+      source = new int[size * size];
+      readInts(source, 0, source.length);
+      holeSize          = chunkIn.readInt();
+      fragmentSize      = chunkIn.readInt();
+      rotationIncrement = chunkIn.readInt();
+      numSpiral         = chunkIn.readInt();
+      minSpiral         = chunkIn.readDouble();
+      maxSpiral         = chunkIn.readDouble();
+      spiralConverge    = chunkIn.readDouble();
+      randomSeed        = chunkIn.readLong();
+      flushTimer        = chunkIn.readInt();
+      rechargeTimer     = chunkIn.readInt();
+      if ((synthesisSize > 0) && (synthesisSize != size))
+      {
+         source       = scale(source, size, synthesisSize);
+         holeSize     = Math.max((holeSize * synthesisSize) / size, 1);
+         fragmentSize = Math.max((fragmentSize * synthesisSize) / size, 2);
+         size         = synthesisSize;
+      }
+      if (synthesisDelay >= 0) { flushTimer = synthesisDelay; }
+      procedural = true;
+   }
+
+
+   // Scale square pixels to a new size.
+   private static int[] scale(int[] pixels, int size, int newSize)
+   {
+      BufferedImage image, scaled;
+      Graphics2D    g;
+      int[]         result;
+
+      image = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+      image.setRGB(0, 0, size, size, pixels, 0, size);
+      scaled = new BufferedImage(newSize, newSize, BufferedImage.TYPE_INT_RGB);
+      g      = scaled.createGraphics();
+      g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                         RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+      g.drawImage(image, 0, 0, newSize, newSize, null);
+      g.dispose();
+      result = new int[newSize * newSize];
+      scaled.getRGB(0, 0, newSize, newSize, result, 0, newSize);
+      return(result);
+   }
+
+
+   // Slice of cassette buffer.
+   private ByteBuffer slice(int offset, int end)
+   {
+      ByteBuffer b = buffer.duplicate();
+
+      ((Buffer)b).position(offset);
+      ((Buffer)b).limit(end);
+      return(b.slice());
+   }
+
+
+   // Read possibly null string.
+   private static String readString(DataInputStream in) throws IOException
+   {
+      if (in.readBoolean()) { return(in.readUTF()); }
+      return(null);
+   }
+
+
+   // Input stream over a buffer.
+   static class BufferInputStream extends InputStream
+   {
+      private ByteBuffer buffer;
+
+      public BufferInputStream(ByteBuffer buffer)
+      {
+         this.buffer = buffer;
+      }
+
+
+      public int read()
+      {
+         if (!buffer.hasRemaining()) { return(-1); }
+         return(buffer.get() & 0xff);
+      }
+
+
+      public int read(byte[] b, int off, int len)
+      {
+         if (!buffer.hasRemaining()) { return(-1); }
+         len = Math.min(len, buffer.remaining());
+         buffer.get(b, off, len);
+         return(len);
+      }
+
+
+      public int available()
+      {
+         return(buffer.remaining());
+      }
+   }
+}
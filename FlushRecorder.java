@@ -23,23 +23,44 @@
  *      [-max_spiral_scale <maximum spiral scale (0.00:1.00, .01 increments)>]
  *      [-spiral_converge <rate at which fragments converge on spirals (0.0:1.0)>]
  *      [-random_seed <random number seed>]
- *      [-display (animation)]
+ *      [-key_frame_interval <cassette frames between key frames> (default suits colour)]
+ *      [-codec <gzip|store|lz> (chunk compression: lz loads fastest)]
+ *      [-compression_level <0 (fastest):9 (smallest)>]
+ *      [-palette <maximum colour channel error (0:255)> (pixels encoding in
+ *          indexed colour if a palette is within the error, else full colour)]
+ *      [-merge_threshold <fraction of pixels changed (0.0:1.0)> (pixels encoding
+ *          merges frames changing less into the frame before)]
+ *      [-encoding <pixels|placements|procedural> (store frame pixels, fragment
+ *          placements or flush parameters for the player to synthesize frames)]
+ *      [-display (animation at playback speed, else frames are recorded
+ *          as fast as possible)]
+ *
+ * java FlushRecorder -batch <manifest file> [-threads <number of threads>]
+ *      [<options common to all cassettes>]
+ *
+ * Each manifest line holds the options of one cassette, including -image
+ * and -file. Cassettes are recorded in parallel.
  */
 
 package graffitv;
 
-import java.applet.*;
 import java.awt.*;
 import java.awt.event.*;
-import java.awt.geom.*;
 import java.awt.image.*;
 import java.net.*;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+import javax.imageio.*;
 import javax.swing.*;
 
 // Record FlushCassette file containing animation of flushed image.
-public class FlushRecorder extends Applet implements Runnable
+// Recording needs no display: record() takes the image and writes the
+// cassette to a stream, so it runs headless and can be embedded, with
+// parameters set by the setters. The command line and -display preview
+// are layered on top.
+public class FlushRecorder
 {
    // Default parameters.
    static final int    FLUSH_TIMER         = 100;
@@ -54,13 +75,22 @@ public class FlushRecorder extends Applet implements Runnable
    static final double MAX_SPIRAL_SCALE = .90;
    static final double SPIRAL_CONVERGE  = .25;
 
+   // Frames in flight between the flush loop and the encoder.
+   static final int PIPELINE_FRAMES = 3;
+
+   // Frames rendered in parallel per common pool thread.
+   static final int PARALLEL_FRAMES = 2;
+
+   // Cassette encodings.
+   static final int PIXELS     = 0;
+   static final int PLACEMENTS = 1;
+   static final int PROCEDURAL = 2;
+
    // Parameters.
    private String     imageName;
-   private Image      image;
    private String     cassetteFile;
    private String     cassetteTitle;
    private String     soundFile;
-   private AudioClip  sound;
    private boolean    scaleImage        = false;
    private int        size              = -1;
    private int        holeSize          = -1;
@@ -72,43 +102,41 @@ public class FlushRecorder extends Applet implements Runnable
    private double     minSpiral         = MIN_SPIRAL_SCALE;
    private double     maxSpiral         = MAX_SPIRAL_SCALE;
    private double     spiralConverge    = SPIRAL_CONVERGE;
-   private Random     random;
+   private int        keyFrameInterval  = -1;
+   private FlushCodec codec             = FlushCodec.codec(FlushCodec.GZIP);
+   private int        compressionLevel  = Deflater.DEFAULT_COMPRESSION;
+   private int        paletteError      = -1;
+   private double     mergeThreshold    = 0.0;
+   private int        encoding          = PIXELS;
+   private long       randomSeed        = new Date().getTime();
    public FlushCanvas canvas;
 
-   // Image fragment.
-   private class ImageFragment
-   {
-      Image image;
-      int   size;
-      Point location;
-      int   spiral;
-      int   index;
+   // Globals.
+   private FlushWriter   writer;
+   private BufferedImage cassetteImage;
+   private Graphics2D    cassetteGraphics;
+   private FlushEngine   engine;
+   private int           cassetteSize;
+   private int           radius;
 
-      public ImageFragment(Image image, int size, Point location)
-      {
-         this.image    = image;
-         this.size     = size;
-         this.location = location;
-         this.spiral   = this.index = -1;
-      }
-   }
+   // Pipeline: the flush loop fills free frames and queues them for
+   // the encoder, which returns them once added to the cassette.
+   private ArrayBlockingQueue<RecordedFrame> freeFrames, encodeFrames;
+   private Encoder                           encoder;
 
-   // Globals.
-   private FlushCassette    cassette;
-   private BufferedImage    cassetteImage;
-   private Graphics2D       cassetteGraphics;
-   private Ellipse2D.Double cassetteClip, fragmentClip;
-   private Vector           fragments;
-   private AffineTransform  xform;
-   private Thread           thread;
-   private int              radius;
-   private int              holeRadius;
-   private int              fragmentRadius;
-   private int              fragmentStagger;
-   private double           scales[];
-   private Vector           spirals[];
+   // Placements of all frames, for rendering frames in parallel.
+   // Frame n has frameCounts[n] placements from frameStarts[n], or
+   // shows the source image if -1.
+   private int   frameTotal;
+   private int[] frameStarts, frameCounts;
+   private int[] tableIds, tableX, tableY;
+   private int   parallelFrames;
+
+   // Recordings sharing the common pool, as in a batch.
+   int recordings = 1;
 
    // Get arguments and set parameters.
+   // Throws IllegalArgumentException for invalid arguments.
    public void getargs(String args[])
    {
       int    i;
@@ -119,366 +147,667 @@ public class FlushRecorder extends Applet implements Runnable
       {
          s = args[i];
 
-         if (s.equals("-?") || s.equals("-h"))
+         if (s.equals("-scale_image"))
          {
-            usage();
-            System.exit(0);
+            setScaleImage(true);
          }
-
-         if (s.equals("-image") && (i < args.length - 1))
+         else if (s.equals("-display"))
          {
-            i++;
-            imageName = args[i];
+            canvas = new FlushCanvas();
          }
-         else if (s.equals("-file") && (i < args.length - 1))
+         else if (i == args.length - 1)
          {
-            i++;
-            cassetteFile = args[i];
+            throw new IllegalArgumentException("Invalid option: " + s);
          }
-         else if (s.equals("-title") && (i < args.length - 1))
+         else if (s.equals("-image"))
          {
-            i++;
-            cassetteTitle = args[i];
+            setImage(args[++i]);
          }
-         else if (s.equals("-sound") && (i < args.length - 1))
+         else if (s.equals("-file"))
          {
-            i++;
-            soundFile = args[i];
+            setFile(args[++i]);
          }
-         else if (s.equals("-scale_image"))
+         else if (s.equals("-title"))
          {
-            scaleImage = true;
+            setTitle(args[++i]);
          }
-         else if (s.equals("-size") && (i < args.length - 1))
+         else if (s.equals("-sound"))
          {
-            i++;
-            try
-            {
-               size = Integer.parseInt(args[i]);
-            }
-            catch (NumberFormatException e) {
-               System.err.println("Invalid size");
-               System.exit(1);
-            }
-            if (size <= 0)
-            {
-               System.err.println("Invalid size");
-               System.exit(1);
-            }
+            setSound(args[++i]);
          }
-         else if (s.equals("-hole_size") && (i < args.length - 1))
+         else if (s.equals("-size"))
          {
-            i++;
-            try
-            {
-               holeSize = Integer.parseInt(args[i]);
-            }
-            catch (NumberFormatException e) {
-               System.err.println("Invalid hole_size");
-               System.exit(1);
-            }
-            if (holeSize <= 0)
-            {
-               System.err.println("Invalid hole_size");
-               System.exit(1);
-            }
+            setSize(intArg(args[++i], "size"));
          }
-         else if (s.equals("-fragment_size") && (i < args.length - 1))
+         else if (s.equals("-hole_size"))
          {
-            i++;
-            try
-            {
-               fragmentSize = Integer.parseInt(args[i]);
-            }
-            catch (NumberFormatException e) {
-               System.err.println("Invalid fragment_size");
-               System.exit(1);
-            }
-            if (fragmentSize <= 0)
-            {
-               System.err.println("Invalid fragment_size");
-               System.exit(1);
-            }
+            setHoleSize(intArg(args[++i], "hole_size"));
          }
-         else if (s.equals("-rotation_increment") && (i < args.length - 1))
+         else if (s.equals("-fragment_size"))
          {
-            i++;
-            try
-            {
-               rotationIncrement = Integer.parseInt(args[i]);
-            }
-            catch (NumberFormatException e) {
-               System.err.println("Invalid rotation_increment");
-               System.exit(1);
-            }
-            if ((rotationIncrement < 0) || (rotationIncrement > 360))
-            {
-               System.err.println("Invalid rotation_increment");
-               System.exit(1);
-            }
+            setFragmentSize(intArg(args[++i], "fragment_size"));
          }
-         else if (s.equals("-flush_delay") && (i < args.length - 1))
+         else if (s.equals("-rotation_increment"))
          {
-            i++;
-            try
-            {
-               flushTimer = Integer.parseInt(args[i]);
-            }
-            catch (NumberFormatException e) {
-               System.err.println("Invalid flush_delay");
-               System.exit(1);
-            }
-            if (flushTimer < 0)
-            {
-               System.err.println("Invalid flush_delay");
-               System.exit(1);
-            }
+            setRotationIncrement(intArg(args[++i], "rotation_increment"));
          }
-         else if (s.equals("-recharge_delay") && (i < args.length - 1))
+         else if (s.equals("-flush_delay"))
          {
-            i++;
-            try
-            {
-               rechargeTimer = Integer.parseInt(args[i]);
-            }
-            catch (NumberFormatException e) {
-               System.err.println("Invalid recharge_delay");
-               System.exit(1);
-            }
-            if (rechargeTimer < 0)
-            {
-               System.err.println("Invalid recharge_delay");
-               System.exit(1);
-            }
+            setFlushDelay(intArg(args[++i], "flush_delay"));
          }
-         else if (s.equals("-num_spiral") && (i < args.length - 1))
+         else if (s.equals("-recharge_delay"))
          {
-            i++;
-            try
-            {
-               numSpiral = Integer.parseInt(args[i]);
-            }
-            catch (NumberFormatException e) {
-               System.err.println("Invalid num_spiral");
-               System.exit(1);
-            }
-            if (numSpiral < 1)
-            {
-               System.err.println("Invalid num_spiral");
-               System.exit(1);
-            }
+            setRechargeDelay(intArg(args[++i], "recharge_delay"));
          }
-         else if (s.equals("-min_spiral") && (i < args.length - 1))
+         else if (s.equals("-num_spiral"))
          {
-            i++;
-            try
-            {
-               minSpiral = Double.parseDouble(args[i]);
-            }
-            catch (NumberFormatException e) {
-               System.err.println("Invalid min_spiral");
-               System.exit(1);
-            }
-            if ((minSpiral < 0.0) || (minSpiral > 1.0))
-            {
-               System.err.println("Invalid min_spiral");
-               System.exit(1);
-            }
-            if (((int)(minSpiral * 1000.0) % 10) != 0)
-            {
-               System.err.println("Invalid min_spiral");
-               System.exit(1);
-            }
+            setNumSpiral(intArg(args[++i], "num_spiral"));
          }
-         else if (s.equals("-max_spiral") && (i < args.length - 1))
+         else if (s.equals("-min_spiral"))
          {
-            i++;
-            try
-            {
-               maxSpiral = Double.parseDouble(args[i]);
-            }
-            catch (NumberFormatException e) {
-               System.err.println("Invalid max_spiral");
-               System.exit(1);
-            }
-            if ((maxSpiral < 0.0) || (maxSpiral > .99))
-            {
-               System.err.println("Invalid max_spiral");
-               System.exit(1);
-            }
-            if (((int)(maxSpiral * 1000.0) % 10) != 0)
-            {
-               System.err.println("Invalid max_spiral");
-               System.exit(1);
-            }
+            setMinSpiral(doubleArg(args[++i], "min_spiral"));
          }
-         else if (s.equals("-spiral_converge") && (i < args.length - 1))
+         else if (s.equals("-max_spiral"))
          {
-            i++;
-            try
-            {
-               spiralConverge = Double.parseDouble(args[i]);
-            }
-            catch (NumberFormatException e) {
-               System.err.println("Invalid spiral_converge");
-               System.exit(1);
-            }
-            if ((spiralConverge < 0.0) || (spiralConverge > 1.0))
-            {
-               System.err.println("Invalid spiral_converge");
-               System.exit(1);
-            }
+            setMaxSpiral(doubleArg(args[++i], "max_spiral"));
          }
-         else if (s.equals("-random_seed") && (i < args.length - 1))
+         else if (s.equals("-spiral_converge"))
          {
-            i++;
-            try
-            {
-               random = new Random(Integer.parseInt(args[i]));
-            }
-            catch (NumberFormatException e) {
-               System.err.println("Invalid random_seed");
-               System.exit(1);
-            }
+            setSpiralConverge(doubleArg(args[++i], "spiral_converge"));
          }
-         else if (s.equals("-display"))
+         else if (s.equals("-random_seed"))
          {
-            canvas = new FlushCanvas();
+            setRandomSeed(intArg(args[++i], "random_seed"));
+         }
+         else if (s.equals("-key_frame_interval"))
+         {
+            setKeyFrameInterval(intArg(args[++i], "key_frame_interval"));
+         }
+         else if (s.equals("-codec"))
+         {
+            setCodec(args[++i]);
+         }
+         else if (s.equals("-compression_level"))
+         {
+            setCompressionLevel(intArg(args[++i], "compression_level"));
+         }
+         else if (s.equals("-palette"))
+         {
+            setPalette(intArg(args[++i], "palette"));
+         }
+         else if (s.equals("-merge_threshold"))
+         {
+            setMergeThreshold(doubleArg(args[++i], "merge_threshold"));
+         }
+         else if (s.equals("-encoding"))
+         {
+            setEncoding(args[++i]);
          }
          else
          {
-            usage();
-            System.exit(1);
+            throw new IllegalArgumentException("Invalid option: " + s);
          }
       }
 
       // Check for missing or inconsistent settings.
       if (imageName == null)
       {
-         usage();
-         System.exit(1);
+         throw new IllegalArgumentException("Missing image");
+      }
+      checkSpiral();
+   }
+
+
+   // Parse integer option value.
+   private static int intArg(String arg, String name)
+   {
+      try
+      {
+         return(Integer.parseInt(arg));
+      }
+      catch (NumberFormatException e) {
+         throw new IllegalArgumentException("Invalid " + name);
+      }
+   }
+
+
+   // Parse real option value.
+   private static double doubleArg(String arg, String name)
+   {
+      try
+      {
+         return(Double.parseDouble(arg));
+      }
+      catch (NumberFormatException e) {
+         throw new IllegalArgumentException("Invalid " + name);
+      }
+   }
+
+
+   // Parameter setters, for recording without a command line.
+   // Each throws IllegalArgumentException for an invalid value, and
+   // a recorder keeps its parameters from one recording to the next.
+
+   // Set image file or URL, for record().
+   public void setImage(String name)
+   {
+      imageName = name;
+   }
+
+
+   // Set cassette file for record(), else stdout.
+   public void setFile(String file)
+   {
+      cassetteFile = file;
+   }
+
+
+   // Set cassette title.
+   public void setTitle(String title)
+   {
+      cassetteTitle = title;
+   }
+
+
+   // Set sound file or URL.
+   public void setSound(String sound)
+   {
+      soundFile = sound;
+   }
+
+
+   // Scale image to cassette size, else center and clip it.
+   public void setScaleImage(boolean scale)
+   {
+      scaleImage = scale;
+   }
+
+
+   // Set cassette ("toilet") size (pixels), -1 for the smaller image
+   // dimension.
+   public void setSize(int size)
+   {
+      if ((size <= 0) && (size != -1))
+      {
+         throw new IllegalArgumentException("Invalid size");
+      }
+      this.size = size;
+   }
+
+
+   // Set "toilet hole" size (pixels), -1 for scaled to cassette size.
+   public void setHoleSize(int size)
+   {
+      if ((size <= 0) && (size != -1))
+      {
+         throw new IllegalArgumentException("Invalid hole_size");
+      }
+      holeSize = size;
+   }
+
+
+   // Set image fragment size (pixels), -1 for scaled to cassette size.
+   public void setFragmentSize(int size)
+   {
+      if ((size <= 0) && (size != -1))
+      {
+         throw new IllegalArgumentException("Invalid fragment_size");
+      }
+      fragmentSize = size;
+   }
+
+
+   // Set rotation increment (degrees).
+   public void setRotationIncrement(int degrees)
+   {
+      if ((degrees < 0) || (degrees > 360))
+      {
+         throw new IllegalArgumentException("Invalid rotation_increment");
+      }
+      rotationIncrement = degrees;
+   }
+
+
+   // Set frame show time while flushing (ms).
+   public void setFlushDelay(int ms)
+   {
+      if (ms < 0)
+      {
+         throw new IllegalArgumentException("Invalid flush_delay");
+      }
+      flushTimer = ms;
+   }
+
+
+   // Set final frame show time while recharging (ms).
+   public void setRechargeDelay(int ms)
+   {
+      if (ms < 0)
+      {
+         throw new IllegalArgumentException("Invalid recharge_delay");
       }
+      rechargeTimer = ms;
+   }
+
+
+   // Set number of spiraling "swirls".
+   public void setNumSpiral(int number)
+   {
+      if (number < 1)
+      {
+         throw new IllegalArgumentException("Invalid num_spiral");
+      }
+      numSpiral = number;
+   }
+
+
+   // Set minimum spiral scale (0.00:1.00, .01 increments).
+   public void setMinSpiral(double scale)
+   {
+      if ((scale < 0.0) || (scale > 1.0) || (((int)(scale * 1000.0) % 10) != 0))
+      {
+         throw new IllegalArgumentException("Invalid min_spiral");
+      }
+      minSpiral = scale;
+   }
+
+
+   // Set maximum spiral scale (0.00:.99, .01 increments).
+   public void setMaxSpiral(double scale)
+   {
+      if ((scale < 0.0) || (scale > .99) || (((int)(scale * 1000.0) % 10) != 0))
+      {
+         throw new IllegalArgumentException("Invalid max_spiral");
+      }
+      maxSpiral = scale;
+   }
+
+
+   // Set rate at which fragments converge on spirals (0.0:1.0).
+   public void setSpiralConverge(double rate)
+   {
+      if ((rate < 0.0) || (rate > 1.0))
+      {
+         throw new IllegalArgumentException("Invalid spiral_converge");
+      }
+      spiralConverge = rate;
+   }
+
+
+   // Set random number seed.
+   public void setRandomSeed(long seed)
+   {
+      randomSeed = seed;
+   }
+
+
+   // Set cassette frames between key frames, -1 for the interval
+   // suiting full or indexed colour.
+   public void setKeyFrameInterval(int frames)
+   {
+      if ((frames < 1) && (frames != -1))
+      {
+         throw new IllegalArgumentException("Invalid key_frame_interval");
+      }
+      keyFrameInterval = frames;
+   }
+
+
+   // Set chunk compression codec: gzip, store or lz.
+   public void setCodec(String name)
+   {
+      FlushCodec c;
+
+      if ((c = FlushCodec.codec(name)) == null)
+      {
+         throw new IllegalArgumentException("Invalid codec");
+      }
+      codec = c;
+   }
+
+
+   // Set compression level: 0 (fastest):9 (smallest).
+   public void setCompressionLevel(int level)
+   {
+      if ((level < 0) || (level > 9))
+      {
+         throw new IllegalArgumentException("Invalid compression_level");
+      }
+      compressionLevel = level;
+   }
+
+
+   // Set maximum colour channel error (0:255) of an indexed colour
+   // pixels cassette, -1 for full colour.
+   public void setPalette(int error)
+   {
+      if ((error < -1) || (error > 255))
+      {
+         throw new IllegalArgumentException("Invalid palette");
+      }
+      paletteError = error;
+   }
+
+
+   // Set fraction of pixels (0.0:1.0) a pixels cassette frame must
+   // change to be kept rather than merged into the frame before.
+   public void setMergeThreshold(double threshold)
+   {
+      if ((threshold < 0.0) || (threshold > 1.0))
+      {
+         throw new IllegalArgumentException("Invalid merge_threshold");
+      }
+      mergeThreshold = threshold;
+   }
+
+
+   // Set encoding: pixels, placements or procedural.
+   public void setEncoding(String name)
+   {
+      if (name.equals("pixels"))
+      {
+         encoding = PIXELS;
+      }
+      else if (name.equals("placements"))
+      {
+         encoding = PLACEMENTS;
+      }
+      else if (name.equals("procedural"))
+      {
+         encoding = PROCEDURAL;
+      }
+      else
+      {
+         throw new IllegalArgumentException("Invalid encoding");
+      }
+   }
+
+
+   // Check spiral scales are consistent.
+   private void checkSpiral()
+   {
       if (minSpiral > maxSpiral)
       {
-         System.err.println("min_spiral must be <= max_spiral");
-         System.exit(1);
+         throw new IllegalArgumentException("min_spiral must be <= max_spiral");
       }
    }
 
 
-   // Initialize.
-   public void init()
-   {
-      URL          url;
-      Toolkit      toolkit;
-      MediaTracker tracker;
-      PixelGrabber grabber;
-
-      int[] pixels;
-      MemoryImageSource memory;
-      int               i, j, k, s, x, y, cx, cy;
-      double            a, d, d2;
-      Point2D.Double    p1, p2;
-      Point             p;
-      ImageFragment     f;
-
-      // Get image to be flushed.
-      toolkit = Toolkit.getDefaultToolkit();
+   // Get cassette file.
+   public String cassetteFile()
+   {
+      return(cassetteFile);
+   }
+
+
+   // Record image file or URL to cassette file, or stdout.
+   // A cassette file left incomplete by an error is deleted.
+   // Returns number of frames recorded.
+   public int record() throws IOException
+   {
+      BufferedImage image;
+      OutputStream  out;
+
+      image = loadImage(imageName);
+      if (soundFile != null) { checkSound(soundFile); }
+      if (cassetteFile == null)
+      {
+         return(record(image, new FileOutputStream(FileDescriptor.out)));
+      }
+      out = new FileOutputStream(cassetteFile);
       try
       {
-         url   = new URL(imageName);
-         image = toolkit.createImage(url);
+         return(record(image, out));
       }
-      catch (MalformedURLException e) {
-         image = toolkit.createImage(imageName);
+      catch (IOException e) {
+         out.close();
+         new File(cassetteFile).delete();
+         throw e;
+      }
+      catch (RuntimeException e) {
+         out.close();
+         new File(cassetteFile).delete();
+         throw e;
       }
-      if (image == null)
+      catch (Error e) {
+         out.close();
+         new File(cassetteFile).delete();
+         throw e;
+      }
+   }
+
+
+   // Record animation of image flushing to cassette stream.
+   // Frames are simulated and rasterized here while the encoder thread
+   // encodes, compresses and writes the frames before them. Without a
+   // display, pixel cassettes simulate the whole flush first and then
+   // render batches of frames in parallel.
+   // Returns number of frames recorded.
+   public int record(BufferedImage image, OutputStream out) throws IOException
+   {
+      boolean complete;
+
+      init(image, out);
+
+      // Procedural cassettes are synthesized by the player.
+      if ((encoding == PROCEDURAL) && (canvas == null))
       {
-         System.err.println("Cannot create image " + imageName);
-         System.exit(1);
+         writer.close();
+         return(writer.frames());
       }
-      tracker = new MediaTracker(this);
-      tracker.addImage(image, 0);
+
+      // Flush loop.
+      encoder = new Encoder();
+      encoder.start();
+      complete = false;
       try
       {
-         tracker.waitForAll();
+         if ((encoding == PIXELS) && (canvas == null))
+         {
+            simulate();
+            renderFrames();
+         }
+         else
+         {
+            while (true)
+            {
+               // Add frame to cassette.
+               record(flushTimer);
+               display();
+
+               if (flush())
+               {
+                  // Add final frame.
+                  record(rechargeTimer);
+                  display();
+                  break;
+               }
+
+               // Pace display only: show times are recorded in the frames.
+               if (canvas != null)
+               {
+                  try
+                  {
+                     Thread.sleep(flushTimer);
+                  }
+                  catch (InterruptedException e) {
+                     throw new InterruptedIOException();
+                  }
+               }
+            }
+         }
+         complete = true;
       }
-      catch (InterruptedException e) {
-         System.err.println("Image loading interrupted");
-         System.exit(1);
+      finally {
+         finish(complete);
       }
-      if ((image.getWidth(this) <= 0) || (image.getHeight(this) <= 0))
+      return(writer.frames());
+   }
+
+
+   // Run the whole flush, saving the placements of every frame.
+   private void simulate()
+   {
+      int     n, count;
+      boolean flushed;
+
+      frameStarts = new int[16];
+      frameCounts = new int[16];
+      tableIds    = new int[Math.max(engine.fragmentCount * 16, 16)];
+      tableX      = new int[tableIds.length];
+      tableY      = new int[tableIds.length];
+      frameCounts[0] = -1;
+      frameTotal     = 1;
+      n              = 0;
+      do
       {
-         System.err.println("Invalid image " + imageName);
-         System.exit(1);
+         flushed = engine.flush();
+         count   = engine.placements;
+         if (frameTotal == frameStarts.length)
+         {
+            frameStarts = Arrays.copyOf(frameStarts, frameTotal * 2);
+            frameCounts = Arrays.copyOf(frameCounts, frameTotal * 2);
+         }
+         if (n + count > tableIds.length)
+         {
+            tableIds = Arrays.copyOf(tableIds, Math.max(tableIds.length * 2, n + count));
+            tableX   = Arrays.copyOf(tableX, tableIds.length);
+            tableY   = Arrays.copyOf(tableY, tableIds.length);
+         }
+         System.arraycopy(engine.placeIds, 0, tableIds, n, count);
+         System.arraycopy(engine.placeX, 0, tableX, n, count);
+         System.arraycopy(engine.placeY, 0, tableY, n, count);
+         frameStarts[frameTotal] = n;
+         frameCounts[frameTotal] = count;
+         frameTotal++;
+         n += count;
       }
+      while (!flushed);
+   }
+
+
+   // Render saved frames in batches across a fork-join pool, queuing
+   // each batch for the encoder in frame order.
+   private void renderFrames() throws IOException
+   {
+      RecordedFrame[] batch;
+      ForkJoinPool    pool;
+      int             i, n, k;
 
-      // Get flush sound.
-      if (soundFile != null)
+      pool  = ForkJoinPool.commonPool();
+      batch = new RecordedFrame[parallelFrames];
+      for (n = 0; n < frameTotal; n += k)
       {
-         try
+         k = Math.min(parallelFrames, frameTotal - n);
+         for (i = 0; i < k; i++)
          {
-            try { url = new URL(soundFile); }
-            catch (MalformedURLException e) {
-               url = new URL("file:" + soundFile);
+            try
+            {
+               batch[i] = freeFrames.take();
+            }
+            catch (InterruptedException e) {
+               throw new InterruptedIOException();
             }
-            sound = newAudioClip(url);
          }
-         catch (Exception e) {
-            System.err.println("Cannot load sound file " + soundFile + ": " + e.getMessage());
-            System.exit(1);
+         pool.invoke(new RenderFrames(batch, n, 0, k));
+         for (i = 0; i < k; i++)
+         {
+            encodeFrames.add(batch[i]);
          }
+         encoder.check();
       }
+   }
+
+
+   // Render frames of a batch, splitting them across the pool.
+   class RenderFrames extends RecursiveAction
+   {
+      RecordedFrame[] batch;
+      int             first, from, to;
 
-      // Set working variables.
-      if (size == -1)
+      // Constructor: render batch[from] to batch[to - 1] as frames
+      // first + from onwards.
+      public RenderFrames(RecordedFrame[] batch, int first, int from, int to)
       {
-         size = Math.min(image.getWidth(this), image.getHeight(this));
+         this.batch = batch;
+         this.first = first;
+         this.from  = from;
+         this.to    = to;
       }
-      radius = size / 2;
+
+
+      protected void compute()
+      {
+         RecordedFrame frame;
+         int           n, mid;
+
+         if (to - from > 1)
+         {
+            mid = (from + to) / 2;
+            invokeAll(new RenderFrames(batch, first, from, mid),
+                      new RenderFrames(batch, first, mid, to));
+            return;
+         }
+         frame       = batch[from];
+         n           = first + from;
+         frame.show  = (n == frameTotal - 1) ? rechargeTimer : flushTimer;
+         frame.count = frameCounts[n];
+         if (frame.count == -1)
+         {
+            System.arraycopy(engine.source, 0, frame.pixels, 0, frame.pixels.length);
+         }
+         else
+         {
+            engine.render(frame.pixels, frameStarts[n], frame.count, tableIds, tableX, tableY);
+         }
+      }
+   }
+
+
+   // Initialize.
+   private void init(BufferedImage image, OutputStream out) throws IOException
+   {
+      int          i, n, x, y, size, hole, fragment;
+      int[]        pixels;
+      double       d;
+      FlushPalette palette;
+
+      // Set working variables, deriving unset sizes from the image
+      // without changing the parameters.
+      checkSpiral();
+      size = (this.size == -1) ? Math.min(image.getWidth(), image.getHeight()) : this.size;
+      cassetteSize = size;
+      radius       = size / 2;
       if (holeSize == -1)
       {
-         holeSize = (int)((double)size * HOLE_SCALE);
+         hole = (int)((double)size * HOLE_SCALE);
       }
-      else if ((holeSize <= 0) || (holeSize > size))
+      else if (holeSize > size)
       {
-         System.err.println("Invalid hole_size value");
-         System.exit(1);
+         throw new IllegalArgumentException("Invalid hole_size value");
       }
-      holeRadius = holeSize / 2;
-      if (fragmentSize == -1)
+      else
       {
-         fragmentSize = (int)((double)size * FRAGMENT_SIZE_SCALE);
+         hole = holeSize;
       }
-      else if ((fragmentSize <= 0) || (fragmentSize > size))
+      if (fragmentSize == -1)
       {
-         System.err.println("Invalid fragment_size value");
-         System.exit(1);
+         fragment = (int)((double)size * FRAGMENT_SIZE_SCALE);
       }
-      fragmentRadius   = fragmentSize / 2;
-      fragmentStagger  = (int)(Math.sqrt((double)(fragmentSize * fragmentSize) / 2.0));
-      cassetteImage    = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
-      cassetteGraphics = cassetteImage.createGraphics();
-      cassetteClip     = new Ellipse2D.Double((double)((size / 2) - radius),
-                                              (double)((size / 2) - radius),
-                                              (double)(radius * 2), (double)(radius * 2));
-      fragmentClip = new Ellipse2D.Double(0.0, 0.0, (double)fragmentSize, (double)fragmentSize);
-      xform        = new AffineTransform();
-      if (random == null) { random = new Random(new Date().getTime()); }
-
-      // Create cassette.
-      try
+      else if (fragmentSize > size)
       {
-         cassette = new FlushCassette(cassetteFile, cassetteTitle, soundFile, size);
+         throw new IllegalArgumentException("Invalid fragment_size value");
       }
-      catch (IOException e) {
-         System.err.println("Cannot create cassette: " + e.getMessage());
-         System.exit(1);
+      else
+      {
+         fragment = fragmentSize;
       }
+      cassetteImage    = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+      cassetteGraphics = cassetteImage.createGraphics();
 
       // Load cassette image.
-      x = image.getWidth(this);
-      y = image.getHeight(this);
+      x = image.getWidth();
+      y = image.getHeight();
       if (scaleImage)
       {
          // Center and scale to fit.
@@ -487,166 +816,254 @@ public class FlushRecorder extends Applet implements Runnable
             d = (double)size / (double)x;
             i = (int)((double)(y / 2) * d);
             cassetteGraphics.drawImage(image, 0, (size / 2) - i, size - 1,
-                                       (size / 2) + i, 0, 0, x - 1, y - 1, Color.white, this);
+                                       (size / 2) + i, 0, 0, x - 1, y - 1, Color.white, null);
          }
          else
          {
             d = (double)size / (double)y;
             i = (int)((double)(x / 2) * d);
             cassetteGraphics.drawImage(image, (size / 2) - i, 0, (size / 2) + i,
-                                       size - 1, 0, 0, x - 1, y - 1, Color.white, this);
+                                       size - 1, 0, 0, x - 1, y - 1, Color.white, null);
          }
       }
       else
       {
          // Center and clip to fit.
-         cassetteGraphics.drawImage(image, radius - (x / 2), radius - (y / 2), x, y, Color.white, this);
-      }
-
-      // Create random spirals.
-      // Fragments will follow the nearest spiral to the center.
-      scales  = new double[numSpiral];
-      spirals = new Vector[numSpiral];
-      cx      = size / 2;
-      cy      = size / 2;
-      p1      = new Point2D.Double();
-      p2      = new Point2D.Double();
-      for (s = 0; s < numSpiral; s++)
-      {
-         scales[s]  = randscale();
-         spirals[s] = new Vector();
-         a          = Math.toRadians((double)random.nextInt(360));
-         xform.setToRotation(a);
-         p1.setLocation(0.0, (double)radius);
-         xform.transform(p1, p2);
-         x = (int)p2.getX() + cx;
-         y = (int)p2.getY() + cy;
-         a = Math.toRadians((double)rotationIncrement);
-         while (true)
-         {
-            spirals[s].addElement(new Point(x, y));
-            p1.setLocation((double)(x - cx), (double)(y - cy));
-            xform.setToRotation(a);
-            xform.scale(scales[s], scales[s]);
-            xform.transform(p1, p2);
-            x = (int)p2.getX() + cx;
-            y = (int)p2.getY() + cy;
-            if ((x < 0) || (x >= size) || (y < 0) || (y >= size)) { break; }
-            d = edist((double)x, (double)y, (double)cx, (double)cy);
-            if ((d <= (double)holeRadius) || (d >= (double)radius)) { break; }
-         }
-      }
-
-      // Create image fragments.
-      fragments = new Vector();
-      pixels    = new int[size * size];
-      grabber   = new PixelGrabber(cassetteImage, 0, 0, size, size, pixels, 0, size);
-      try {
-         grabber.grabPixels();
-      }
-      catch (InterruptedException e) {}
-      j = size - fragmentSize;
-      for (x = fragmentSize / 2; x < j; x += fragmentStagger)
-      {
-         for (y = fragmentSize / 2; y < j; y += fragmentStagger)
-         {
-            d = edist((double)x, (double)y, (double)cx, (double)cy);
-            if (d >= (double)radius) { continue; }
-            i      = (y * size) + x;
-            memory = new MemoryImageSource(fragmentSize, fragmentSize, pixels, i, size);
-            p      = new Point(x, y);
-            f      = new ImageFragment(createImage(memory), fragmentSize, p);
-            fragments.addElement(f);
-
-            // Assign spiral to fragment.
-            d2 = size * 2.0;
-            for (s = 0; s < numSpiral; s++)
-            {
-               for (i = 0, k = spirals[s].size(); i < k; i++)
-               {
-                  p = (Point)spirals[s].elementAt(i);
+         cassetteGraphics.drawImage(image, radius - (x / 2), radius - (y / 2), x, y, Color.white, null);
+      }
+      cassetteGraphics.dispose();
 
-                  d = edist(f.location.getX(), f.location.getY(), p.getX(), p.getY());
-                  if ((f.spiral == -1) || (d < d2))
-                  {
-                     f.spiral = s;
-                     f.index  = i;
-                     d2       = d;
-                  }
-               }
-            }
+      // Create flush engine for cassette image.
+      pixels = new int[size * size];
+      cassetteImage.getRGB(0, 0, size, size, pixels, 0, size);
+      engine = new FlushEngine(pixels, size, hole, fragment, rotationIncrement,
+                               numSpiral, minSpiral, maxSpiral, spiralConverge, randomSeed);
+
+      // Build palette, if its colour error is within bounds.
+      palette = null;
+      if ((encoding == PIXELS) && (paletteError != -1))
+      {
+         palette = new FlushPalette(engine.source);
+         if (palette.maxError > paletteError)
+         {
+            System.err.println("Palette colour error " + palette.maxError + " exceeds " +
+                               paletteError + ": recording full colour");
+            palette = null;
          }
       }
 
-      // Size canvas.
-      if (canvas != null) { canvas.setSize(size, size); }
+      // Create cassette, with the key frame interval suiting its colour
+      // unless set.
+      if ((i = keyFrameInterval) == -1)
+      {
+         i = (palette != null) ? FlushFormat.INDEXED_KEY_FRAME_INTERVAL :
+                                 FlushFormat.KEY_FRAME_INTERVAL;
+      }
+      writer = new FlushWriter(out, cassetteTitle, soundFile, size, i, codec, compressionLevel);
+      writer.setMergeThreshold(mergeThreshold);
+      if (palette != null) { writer.addPalette(palette); }
+
+      // Create pipeline frames: a batch being rendered in parallel and
+      // the one before it being encoded, else a few frames in flight.
+      // Batches render on the common pool, so recordings sharing it
+      // share its threads rather than each holding frames for all.
+      parallelFrames = Math.max(ForkJoinPool.getCommonPoolParallelism() / recordings, 1) *
+                       PARALLEL_FRAMES;
+      i              = ((encoding == PIXELS) && (canvas == null)) ? parallelFrames * 2 : PIPELINE_FRAMES;
+      freeFrames     = new ArrayBlockingQueue<RecordedFrame>(i);
+      encodeFrames   = new ArrayBlockingQueue<RecordedFrame>(i + 1);
+      for (n = i, i = 0; i < n; i++)
+      {
+         freeFrames.add(new RecordedFrame());
+      }
+      if (encoding == PIXELS)
+      {
+         writer.addAnnulus(engine.renderer.cassetteLeft, engine.renderer.cassetteRight,
+                           engine.renderer.holeLeft, engine.renderer.holeRight);
+      }
+      if (encoding == PLACEMENTS)
+      {
+         writer.addAtlas(engine.source, hole / 2, fragment, engine.fragmentCount,
+                         engine.fragmentX, engine.fragmentY);
+      }
+      else if (encoding == PROCEDURAL)
+      {
+         writer.addProcedure(engine, flushTimer, rechargeTimer);
+      }
+
+      // Show display.
+      if (canvas != null)
+      {
+         canvas.setSize(size, size);
+         JFrame frame = new JFrame("Flush Recorder");
+         frame.addWindowListener(new WindowAdapter()
+                                 {
+                                    public void windowClosing(WindowEvent e) { System.exit(1); }
+                                 }
+                                 );
+         frame.getContentPane().add("Center", canvas);
+         frame.pack();
+         frame.setSize(new Dimension(size, size));
+         frame.show();
+      }
    }
 
 
-   // Generate random scale to simulate turbulence.
-   private double randscale()
+   // Queue current frame for the cassette.
+   // Before the first flush the frame is the unclipped source image.
+   private void record(int show) throws IOException
    {
-      int i = (int)((maxSpiral - minSpiral) * 100.0) + 1;
+      RecordedFrame frame;
 
-      return(((double)random.nextInt(i) / 100.0) + minSpiral);
+      try
+      {
+         frame = freeFrames.take();
+      }
+      catch (InterruptedException e) {
+         throw new InterruptedIOException();
+      }
+      frame.show  = show;
+      frame.count = engine.placements;
+      if (frame.image != null)
+      {
+         if (engine.placements == -1)
+         {
+            System.arraycopy(engine.source, 0, frame.pixels, 0, frame.pixels.length);
+         }
+         else
+         {
+            engine.render(frame.pixels);
+         }
+         cassetteImage = frame.image;
+      }
+      if ((frame.ids != null) && (frame.count > 0))
+      {
+         System.arraycopy(engine.placeIds, 0, frame.ids, 0, frame.count);
+         System.arraycopy(engine.placeX, 0, frame.x, 0, frame.count);
+         System.arraycopy(engine.placeY, 0, frame.y, 0, frame.count);
+      }
+      encodeFrames.add(frame);
+      encoder.check();
    }
 
 
-   // Start.
-   public void start()
+   // Stop encoder once it has added the queued frames, closing the
+   // cassette if the recording is complete.
+   private void finish(boolean complete) throws IOException
    {
-      if (thread == null)
+      encoder.complete = complete;
+      encodeFrames.add(new RecordedFrame(true));
+      try
       {
-         thread = new Thread(this);
-         thread.setPriority(Thread.MIN_PRIORITY);
-         thread.start();
+         encoder.join();
+      }
+      catch (InterruptedException e) {
+         throw new InterruptedIOException();
       }
+      if (complete) { encoder.check(); }
    }
 
 
-   // Stop.
-   public synchronized void stop()
+   // Frame passed from the flush loop to the encoder.
+   class RecordedFrame
    {
-      thread = null;
+      int           show;
+      BufferedImage image;    // Rendered frame, if recorded as pixels or displayed.
+      int[]         pixels;
+      int           count;    // Placements, -1 for the source image.
+      int[]         ids, x, y;
+      boolean       last;     // Stops encoder.
+
+      // Constructor.
+      public RecordedFrame()
+      {
+         if ((encoding == PIXELS) || (canvas != null))
+         {
+            image  = new BufferedImage(cassetteSize, cassetteSize, BufferedImage.TYPE_INT_RGB);
+            pixels = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+         }
+         if (encoding == PLACEMENTS)
+         {
+            ids = new int[engine.fragmentCount];
+            x   = new int[engine.fragmentCount];
+            y   = new int[engine.fragmentCount];
+         }
+      }
+
+
+      // Constructor of encoder stop.
+      public RecordedFrame(boolean last)
+      {
+         this.last = last;
+      }
    }
 
 
-   // Run.
-   public void run()
+   // Encoder: adds queued frames to the cassette.
+   // After any throwable, even running out of memory, frames are
+   // returned unused until stopped so the flush loop never starves.
+   class Encoder extends Thread
    {
-      Thread   me;
-      Graphics g;
+      volatile boolean   complete;
+      volatile Throwable error;
 
-      if ((me = Thread.currentThread()) != thread) { return; }
-
-      // Flush loop.
-      while (thread == me)
+      public void run()
       {
-         display();
+         RecordedFrame frame;
 
-         // Add frame to cassette.
-         cassette.add(cassette.newFrame((Image)cassetteImage,
-                                        new Dimension(size, size), flushTimer));
-
-         if (flush())
+         try
          {
-            display();
+            while (!(frame = encodeFrames.take()).last)
+            {
+               try
+               {
+                  if (error == null) { add(frame); }
+               }
+               catch (Throwable e) {
+                  error = e;
+               }
+               freeFrames.add(frame);
+            }
+            if (complete && (error == null)) { writer.close(); }
+         }
+         catch (Throwable e) {
+            error = e;
+         }
+      }
 
-            // Add final frame.
-            cassette.add(cassette.newFrame((Image)cassetteImage,
-                                           new Dimension(size, size), rechargeTimer));
-            cassette.close();
 
-            System.exit(0);
+      // Add frame to cassette.
+      private void add(RecordedFrame frame) throws IOException
+      {
+         if (encoding == PIXELS)
+         {
+            writer.add(frame.pixels, frame.show);
          }
-
-         try
+         else if (encoding == PLACEMENTS)
          {
-            Thread.sleep(flushTimer);
+            if (frame.count == -1)
+            {
+               writer.addSource(frame.show);
+            }
+            else
+            {
+               writer.add(frame.show, frame.count, frame.ids, frame.x, frame.y);
+            }
          }
-         catch (InterruptedException e) { break; }
       }
-      thread = null;
+
+
+      // Rethrow encoder error.
+      void check() throws IOException
+      {
+         Throwable e;
+
+         if ((e = error) == null) { return; }
+         if (e instanceof IOException) { throw (IOException)e; }
+         if (e instanceof RuntimeException) { throw (RuntimeException)e; }
+         if (e instanceof Error) { throw (Error)e; }
+         throw new IOException(e.toString());
+      }
    }
 
 
@@ -664,106 +1081,9 @@ public class FlushRecorder extends Applet implements Runnable
 
 
    // Flush - returns true when image completely flushed.
-   // Incrementally spiral swirls of image fragments into the
-   // image center using a combined rotation and scale reduction.
    private boolean flush()
    {
-      int           i, j, s, x, y, x2, y2, cx, cy;
-      ImageFragment f;
-      double        a, d;
-      Point         p;
-
-      Point2D.Double p1, p2;
-      Vector         v;
-      Graphics       g;
-      boolean        flushed;
-
-      // Spiral fragments.
-      flushed = true;
-      a       = Math.toRadians((double)rotationIncrement);
-      p1      = new Point2D.Double();
-      p2      = new Point2D.Double();
-      cx      = size / 2;
-      cy      = size / 2;
-      v       = new Vector();
-      for (i = 0, j = fragments.size(); i < j; i++)
-      {
-         f = (ImageFragment)fragments.elementAt(i);
-         x = f.location.x;
-         y = f.location.y;
-         p1.setLocation((double)(x - cx), (double)(y - cy));
-         xform.setToRotation(a);
-         d = scales[f.spiral];
-         xform.scale(d, d);
-         xform.transform(p1, p2);
-         x2 = (int)p2.getX() + cx;
-         y2 = (int)p2.getY() + cy;
-         f.index++;
-         if (f.index < spirals[f.spiral].size())
-         {
-            p   = (Point)spirals[f.spiral].elementAt(f.index);
-            x2 += (double)(p.x - x2) * spiralConverge;
-            y2 += (double)(p.y - y2) * spiralConverge;
-         }
-         if ((x2 >= 0) && (x2 < size) && (y2 >= 0) && (y2 < size))
-         {
-            d = edist((double)x2, (double)y2, (double)cx, (double)cy);
-            if ((d > (double)holeRadius) && (d < (double)radius))
-            {
-               f.location.x = x2;
-               f.location.y = y2;
-               v.addElement(f);
-               flushed = false;
-            }
-         }
-      }
-      fragments = v;
-
-      // Create new image spiral by spiral.
-      cassetteGraphics.dispose();
-      cassetteImage    = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
-      cassetteGraphics = cassetteImage.createGraphics();
-      cassetteGraphics.setClip(cassetteClip);
-      cassetteGraphics.setColor(Color.white);
-      cassetteGraphics.fillRect(0, 0, size, size);
-      j = fragments.size();
-      for (s = 0; s < numSpiral; s++)
-      {
-         for (i = 0; i < j; i++)
-         {
-            f = (ImageFragment)fragments.elementAt(i);
-            if (f.spiral != s) { continue; }
-            x = f.location.x;
-            y = f.location.y;
-            cassetteGraphics.setClip(cassetteClip);
-            fragmentClip.setFrame((double)(x - (f.size / 2)),
-                                  (double)(y - (f.size / 2)),
-                                  (double)fragmentSize, (double)fragmentSize);
-            cassetteGraphics.clip(fragmentClip);
-            cassetteGraphics.drawImage(f.image, x - (f.size / 2),
-                                       y - (f.size / 2), this);
-         }
-      }
-      cassetteGraphics.setClip(cassetteClip);
-      cassetteGraphics.setColor(Color.black);
-      cassetteGraphics.fillOval(cx - holeRadius, cy - holeRadius, holeRadius * 2, holeRadius * 2);
-
-      return(flushed);
-   }
-
-
-   // Euclidean distance
-   public double edist(double x1, double y1, double x2, double y2)
-   {
-      double d, t;
-
-      t  = x1 - x2;
-      t *= t;
-      d  = t;
-      t  = y1 - y2;
-      t *= t;
-      d += t;
-      return(Math.sqrt(d));
+      return(engine.flush());
    }
 
 
@@ -787,7 +1107,20 @@ public class FlushRecorder extends Applet implements Runnable
       System.err.println("\t[-max_spiral_scale <maximum spiral scale (0.00:1.00, .01 increments)>]");
       System.err.println("\t[-spiral_converge <rate at which fragments converge on spirals (0.0:1.0)>]");
       System.err.println("\t[-random_seed <random number seed>]");
-      System.err.println("\t[-display (animation)]");
+      System.err.println("\t[-key_frame_interval <cassette frames between key frames> (default suits colour)]");
+      System.err.println("\t[-codec <" + FlushCodec.names() + "> (chunk compression: lz loads fastest)]");
+      System.err.println("\t[-compression_level <0 (fastest):9 (smallest)>]");
+      System.err.println("\t[-palette <maximum colour channel error (0:255)> (pixels encoding in");
+      System.err.println("\t    indexed colour if a palette is within the error, else full colour)]");
+      System.err.println("\t[-merge_threshold <fraction of pixels changed (0.0:1.0)> (pixels encoding");
+      System.err.println("\t    merges frames changing less into the frame before)]");
+      System.err.println("\t[-encoding <pixels|placements|procedural> (store frame pixels, fragment");
+      System.err.println("\t    placements or flush parameters for the player to synthesize frames)]");
+      System.err.println("\t[-display (animation at playback speed, else frames are recorded");
+      System.err.println("\t    as fast as possible)]");
+      System.err.println("java FlushRecorder -batch <manifest file> [-threads <number of threads>]");
+      System.err.println("\t[<options common to all cassettes>]");
+      System.err.println("\t(each manifest line holds the options of one cassette)");
    }
 
 
@@ -805,26 +1138,87 @@ public class FlushRecorder extends Applet implements Runnable
       }
    }
 
+   // Load image from file or URL.
+   static BufferedImage loadImage(String name) throws IOException
+   {
+      BufferedImage image;
+
+      try
+      {
+         try
+         {
+            image = ImageIO.read(new URL(name));
+         }
+         catch (MalformedURLException e) {
+            image = ImageIO.read(new File(name));
+         }
+      }
+      catch (IOException e) {
+         throw new IOException("Cannot read image " + name + ": " + e.getMessage());
+      }
+      if (image == null) { throw new IOException("Unsupported image format " + name); }
+      return(image);
+   }
+
+
+   // Check sound file or URL can be opened.
+   static void checkSound(String name) throws IOException
+   {
+      URL url;
+
+      try
+      {
+         try { url = new URL(name); }
+         catch (MalformedURLException e) {
+            url = new URL("file:" + name);
+         }
+         url.openStream().close();
+      }
+      catch (IOException e) {
+         throw new IOException("Cannot load sound file " + name + ": " + e.getMessage());
+      }
+   }
+
+
    // Main.
    public static void main(String args[])
    {
       FlushRecorder recorder = new FlushRecorder();
+      int           i;
 
-      recorder.getargs(args);
-      recorder.init();
-      if (recorder.canvas != null)
+      for (i = 0; i < args.length; i++)
       {
-         JFrame frame = new JFrame("Flush Recorder");
-         frame.addWindowListener(new WindowAdapter()
-                                 {
-                                    public void windowClosing(WindowEvent e) { System.exit(1); }
-                                 }
-                                 );
-         frame.getContentPane().add("Center", recorder.canvas);
-         frame.pack();
-         frame.setSize(new Dimension(recorder.size, recorder.size));
-         frame.show();
+         if (args[i].equals("-?") || args[i].equals("-h"))
+         {
+            usage();
+            System.exit(0);
+         }
+         if (args[i].equals("-batch"))
+         {
+            System.exit((FlushBatch.batch(args) == 0) ? 0 : 1);
+         }
+      }
+      try
+      {
+         recorder.getargs(args);
+      }
+      catch (IllegalArgumentException e) {
+         System.err.println(e.getMessage());
+         usage();
+         System.exit(1);
+      }
+      try
+      {
+         recorder.record();
+      }
+      catch (IllegalArgumentException e) {
+         System.err.println(e.getMessage());
+         System.exit(1);
+      }
+      catch (IOException e) {
+         System.err.println(e.getMessage());
+         System.exit(1);
       }
-      recorder.start();
+      System.exit(0);
    }
 }
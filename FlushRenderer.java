@@ -0,0 +1,250 @@
+/*
+ *
+ * FlushRenderer.java
+ *
+ * Draw flush frames from placements of image fragments.
+ *
+ */
+
+package graffitv;
+
+import java.awt.*;
+import java.awt.geom.*;
+import java.awt.image.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Render frames of circular image fragments swirling around the toilet.
+// Shared by the recorder and by cassettes that store fragment placements
+// instead of frame pixels, so both draw identical frames.
+public class FlushRenderer
+{
+   // Frames at least this size are rendered in parallel bands.
+   static final int PARALLEL_SIZE    = 512;
+   static final int BANDS_PER_THREAD = 4;
+   static final int MIN_BAND_ROWS    = 32;
+
+   // Globals.
+   private int   size;
+   private int   radius;
+   private int   holeRadius;
+   private int   fragmentSize;
+   private int[] source;
+   private int[] fragmentX, fragmentY;
+
+   // Circle masks as left and right (exclusive) bounds of each row.
+   int[]         cassetteLeft, cassetteRight;
+   int[]         holeLeft, holeRight;
+   private int[] fragmentLeft, fragmentRight;
+
+   // Constructor.
+   // Fragments are fragmentSize squares of the size x size source
+   // pixels with the given upper left corners.
+   public FlushRenderer(int size, int holeRadius, int fragmentSize, int[] source,
+                        int count, int[] fragmentX, int[] fragmentY)
+   {
+      Ellipse2D.Double cassetteClip;
+      int              cx, cy;
+
+      this.size         = size;
+      this.holeRadius   = holeRadius;
+      this.fragmentSize = fragmentSize;
+      this.source       = source;
+      this.fragmentX    = fragmentX;
+      this.fragmentY    = fragmentY;
+      radius            = size / 2;
+      cx                = size / 2;
+      cy                = size / 2;
+      cassetteClip      = new Ellipse2D.Double((double)(cx - radius), (double)(cy - radius),
+                                               (double)(radius * 2), (double)(radius * 2));
+
+      // Let Java2D rasterize the circles once so the masks cover
+      // exactly the pixels it would paint.
+      cassetteLeft  = new int[size];
+      cassetteRight = new int[size];
+      mask(size, cassetteClip, null, cassetteLeft, cassetteRight);
+      holeLeft  = new int[size];
+      holeRight = new int[size];
+      mask(size, cassetteClip, new Ellipse2D.Double((double)(cx - holeRadius),
+                                                    (double)(cy - holeRadius),
+                                                    (double)(holeRadius * 2),
+                                                    (double)(holeRadius * 2)),
+           holeLeft, holeRight);
+      fragmentLeft  = new int[fragmentSize];
+      fragmentRight = new int[fragmentSize];
+      mask(fragmentSize, new Ellipse2D.Double(0.0, 0.0, (double)fragmentSize,
+                                              (double)fragmentSize),
+           null, fragmentLeft, fragmentRight);
+   }
+
+
+   // Find row bounds of the pixels filled inside clip, or of the oval
+   // bounded by the given frame drawn inside clip.
+   private static void mask(int size, Shape clip, Ellipse2D oval, int[] left, int[] right)
+   {
+      BufferedImage image;
+      Graphics2D    g;
+      int[]         pixels;
+      int           x, y;
+
+      image = new BufferedImage(Math.max(size, 1), Math.max(size, 1), BufferedImage.TYPE_INT_RGB);
+      g     = image.createGraphics();
+      g.setClip(clip);
+      g.setColor(Color.white);
+      if (oval == null)
+      {
+         g.fillRect(0, 0, size, size);
+      }
+      else
+      {
+         g.fillOval((int)oval.getX(), (int)oval.getY(), (int)oval.getWidth(),
+                    (int)oval.getHeight());
+      }
+      g.dispose();
+      pixels = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+      for (y = 0; y < size; y++)
+      {
+         for (x = 0; x < size && pixels[(y * size) + x] == 0; x++) {}
+         left[y] = x;
+         for (x = size; x > left[y] && pixels[(y * size) + x - 1] == 0; x--) {}
+         right[y] = x;
+      }
+   }
+
+
+   // Render frame of fragments centered at the given locations.
+   // Placements are in painting order.
+   public BufferedImage render(int count, int[] ids, int[] x, int[] y)
+   {
+      BufferedImage image;
+
+      image = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+      render(((DataBufferInt)image.getRaster().getDataBuffer()).getData(), 0, count, ids, x, y);
+      return(image);
+   }
+
+
+   // Render frame into size x size pixels from the placements starting
+   // at the given index. Pixels are opaque ARGB, as getRGB gives them, so
+   // they can be recorded directly. Rendering only reads shared state, so
+   // frames can be rendered in parallel.
+   // Large frames are split into bands of rows rendered in parallel.
+   public void render(int[] pixels, int start, int count, int[] ids, int[] x, int[] y)
+   {
+      int bands;
+
+      bands = Math.min(ForkJoinPool.getCommonPoolParallelism() * BANDS_PER_THREAD,
+                       size / MIN_BAND_ROWS);
+      if ((size < PARALLEL_SIZE) || (ForkJoinPool.getCommonPoolParallelism() < 2))
+      {
+         render(pixels, start, count, ids, x, y, 0, size);
+      }
+      else
+      {
+         ForkJoinPool.commonPool().invoke(new RenderBands(pixels, start, count, ids, x, y,
+                                                          bands, 0, bands));
+      }
+   }
+
+
+   // Render band of frame from row from up to row to.
+   // Each band paints every placement in order, clipped to its rows,
+   // so the bands together paint exactly what one pass would.
+   private void render(int[] pixels, int start, int count, int[] ids, int[] x, int[] y,
+                       int from, int to)
+   {
+      int i, j, r, r2, ox, oy, row, left, right, half, id;
+
+      // Black surround and white cassette.
+      Arrays.fill(pixels, from * size, to * size, 0xff000000);
+      for (row = from; row < to; row++)
+      {
+         for (i = (row * size) + cassetteLeft[row], j = (row * size) + cassetteRight[row]; i < j; i++)
+         {
+            pixels[i] = 0xffffffff;
+         }
+      }
+
+      // Stamp fragment circles clipped to the cassette.
+      half = fragmentSize / 2;
+      for (i = start, j = start + count; i < j; i++)
+      {
+         id = ids[i];
+         ox = x[i] - half;
+         oy = y[i] - half;
+         r  = Math.max(from - oy, 0);
+         r2 = Math.min(to - oy, fragmentSize);
+         for ( ; r < r2; r++)
+         {
+            row   = oy + r;
+            left  = Math.max(ox + fragmentLeft[r], cassetteLeft[row]);
+            right = Math.min(ox + fragmentRight[r], cassetteRight[row]);
+            if (left >= right) { continue; }
+            System.arraycopy(source, ((fragmentY[id] + r) * size) + fragmentX[id] + left - ox,
+                             pixels, (row * size) + left, right - left);
+         }
+      }
+
+      // Black hole.
+      for (row = from; row < to; row++)
+      {
+         for (i = (row * size) + holeLeft[row], j = (row * size) + holeRight[row]; i < j; i++)
+         {
+            pixels[i] = 0xff000000;
+         }
+      }
+   }
+
+
+   // Render bands of a frame, splitting them across the pool.
+   class RenderBands extends RecursiveAction
+   {
+      int[] pixels, ids, x, y;
+      int   start, count, bands, first, last;
+
+      // Constructor: render bands first to last - 1 of the frame
+      // divided into the given number of bands.
+      public RenderBands(int[] pixels, int start, int count, int[] ids, int[] x, int[] y,
+                         int bands, int first, int last)
+      {
+         this.pixels = pixels;
+         this.start  = start;
+         this.count  = count;
+         this.ids    = ids;
+         this.x      = x;
+         this.y      = y;
+         this.bands  = bands;
+         this.first  = first;
+         this.last   = last;
+      }
+
+
+      protected void compute()
+      {
+         int mid;
+
+         if (last - first > 1)
+         {
+            mid = (first + last) / 2;
+            invokeAll(new RenderBands(pixels, start, count, ids, x, y, bands, first, mid),
+                      new RenderBands(pixels, start, count, ids, x, y, bands, mid, last));
+            return;
+         }
+         render(pixels, start, count, ids, x, y,
+                (int)(((long)size * first) / bands), (int)(((long)size * last) / bands));
+      }
+   }
+
+
+   // Image backed by size x size pixels.
+   static BufferedImage image(int[] pixels, int size)
+   {
+      DirectColorModel model;
+      WritableRaster   raster;
+
+      model  = (DirectColorModel)ColorModel.getRGBdefault();
+      raster = Raster.createPackedRaster(new DataBufferInt(pixels, size * size),
+                                         size, size, size, model.getMasks(), null);
+      return(new BufferedImage(model, raster, false, null));
+   }
+}
@@ -0,0 +1,44 @@
+/*
+ *
+ * FlushStoreCodec.java
+ *
+ * Uncompressed FlushCassette chunks.
+ *
+ */
+
+package graffitv;
+
+import java.io.*;
+import java.nio.*;
+
+// Store codec: chunks are kept as is, for the fastest load at the
+// largest size.
+public class FlushStoreCodec extends FlushCodec
+{
+   public int id()
+   {
+      return(STORE);
+   }
+
+
+   public String name()
+   {
+      return("store");
+   }
+
+
+   public byte[] compress(byte[] records, int level)
+   {
+      return(records);
+   }
+
+
+   public byte[] decompress(ByteBuffer chunk)
+   {
+      byte[] records;
+
+      records = new byte[chunk.remaining()];
+      chunk.get(records);
+      return(records);
+   }
+}
@@ -0,0 +1,631 @@
+/*
+ *
+ * FlushWriter.java
+ *
+ * Write FlushCassette files.
+ *
+ */
+
+package graffitv;
+
+import java.io.*;
+import java.nio.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+// Write a chunked cassette to a stream.
+// Needs no display or applet, so cassettes can be recorded headless.
+// Chunks are compressed by the selected codec in parallel on the common
+// fork-join pool and written in order as they complete.
+public class FlushWriter
+{
+   // Globals.
+   private int                   size;             // XY size.
+   private DataOutputStream      out;              // Output stream.
+   private ByteArrayOutputStream chunk;            // Current chunk.
+   private DataOutputStream      chunkOut;         // Chunk record stream.
+   private int[]                 pixels;           // Frame pixels.
+   private int[]                 previous;         // Previous frame pixels.
+   private int[]                 spans;            // Delta spans.
+   private boolean               hasPrevious;      // Previous frame was pixels.
+   private int                   frameCount;       // Frames added.
+   private int                   keyFrameInterval; // Frames between key frames.
+   private int                   chunkCount;       // Chunks started.
+   private int                   sourceChunk;      // Chunk holding atlas, procedure, palette or annulus.
+   private FlushCodec            codec;            // Chunk codec.
+   private int                   level;            // Compression level.
+   private Vector                compressing;      // Chunks being compressed, in order.
+   private ByteArrayOutputStream chunkTable;       // Chunk index.
+   private DataOutputStream      chunkIndex;
+   private ByteArrayOutputStream frameTable;       // Frame index.
+   private DataOutputStream      frameIndex;
+   private byte[]                block;            // Frame data block.
+   private IntBuffer             blockInts;        // Its ints.
+   private FlushPalette          palette;          // Indexed colour palette.
+   private int[]                 annulus;          // Annulus spans of each row.
+   private int                   annulusPixels;    // Pixels in its spans.
+   private int[]                 pending;          // Frame held to merge repeats.
+   private int                   pendingShow;      // Its show time, or -1 if none.
+   private int                   mergeLimit;       // Changed pixels keeping a frame.
+   private int[]                 merged;           // Last frame merged into it.
+   private int                   mergedShow;       // Its show time, or -1 if none.
+   private Hashtable             originals;        // Frame numbers by pixel digest.
+   private MessageDigest         digest;           // Frame pixel digest.
+
+   // Constructor: write header.
+   public FlushWriter(OutputStream stream, String cassetteTitle, String soundFile,
+                      int size, int keyFrameInterval) throws IOException
+   {
+      this(stream, cassetteTitle, soundFile, size, keyFrameInterval,
+           FlushCodec.codec(FlushCodec.GZIP), Deflater.DEFAULT_COMPRESSION);
+   }
+
+
+   // Constructor with chunk codec and compression level: 0 (fastest) to
+   // 9 (smallest), or Deflater.DEFAULT_COMPRESSION.
+   public FlushWriter(OutputStream stream, String cassetteTitle, String soundFile,
+                      int size, int keyFrameInterval, FlushCodec codec,
+                      int level) throws IOException
+   {
+      this.size             = size;
+      this.keyFrameInterval = Math.max(keyFrameInterval, 1);
+      this.codec            = codec;
+      this.level            = level;
+      out = new DataOutputStream(new BufferedOutputStream(stream));
+      out.write(FlushFormat.MAGIC);
+      out.writeInt(FlushFormat.VERSION);
+      writeString(out, cassetteTitle);
+      writeString(out, soundFile);
+      out.writeInt(size);
+      out.writeByte(codec.id());
+      out.flush();
+      pixels      = new int[size * size];
+      previous    = new int[size * size];
+      spans       = new int[(size * size) / 2 + 2];
+      pending     = new int[size * size];
+      pendingShow = -1;
+      mergeLimit  = 1;
+      merged      = new int[size * size];
+      mergedShow  = -1;
+      originals   = new Hashtable();
+      frameCount  = 0;
+      chunkCount  = 0;
+      sourceChunk = -1;
+      chunkTable  = new ByteArrayOutputStream();
+      chunkIndex  = new DataOutputStream(chunkTable);
+      frameTable  = new ByteArrayOutputStream();
+      frameIndex  = new DataOutputStream(frameTable);
+      block       = new byte[FlushFormat.BLOCK_SIZE];
+      blockInts   = ByteBuffer.wrap(block).asIntBuffer();
+      compressing = new Vector();
+      try
+      {
+         digest = MessageDigest.getInstance("SHA-256");
+      }
+      catch (NoSuchAlgorithmException e) {
+         throw new IOException(e.getMessage());
+      }
+   }
+
+
+   // Get number of frames added.
+   public int frames()
+   {
+      return(frameCount + ((pendingShow != -1) ? 1 : 0));
+   }
+
+
+   // Set fraction of pixels (0.0:1.0) a frame must change from the one
+   // before to be kept; a frame changing fewer is merged into it. Zero
+   // merges only repeats.
+   public void setMergeThreshold(double threshold)
+   {
+      mergeLimit = Math.max((int)Math.ceil(threshold * (double)(size * size)), 1);
+   }
+
+
+   // Add frame of size x size pixels.
+   // A frame changing fewer pixels than the merge threshold from the one
+   // before, as a repeat does, is merged into it, adding to its show
+   // time, so each frame is held until the next is kept. A frame merged
+   // short of repeating is held too, since it is kept if it is the last.
+   public void add(int[] frame, int show) throws IOException
+   {
+      int n;
+
+      if (mergedShow != -1)
+      {
+         pendingShow += mergedShow;
+         mergedShow   = -1;
+      }
+      if (pendingShow != -1)
+      {
+         n = changed(frame, mergeLimit);
+         if (n == 0)
+         {
+            pendingShow += show;
+            return;
+         }
+         if (n < mergeLimit)
+         {
+            System.arraycopy(frame, 0, merged, 0, merged.length);
+            mergedShow = show;
+            return;
+         }
+      }
+      addPending();
+      System.arraycopy(frame, 0, pending, 0, pending.length);
+      pendingShow = show;
+   }
+
+
+   // Count pixels of frame differing from the held frame, stopping at
+   // the limit.
+   private int changed(int[] frame, int limit)
+   {
+      int i, n;
+
+      for (i = n = 0; (i < frame.length) && (n < limit); i++)
+      {
+         if (frame[i] != pending[i]) { n++; }
+      }
+      return(n);
+   }
+
+
+   // Write held frame, if any. A frame identical to an earlier one is
+   // written as a reference to it, leaving the frame that deltas are
+   // taken from unchanged.
+   private void addPending() throws IOException
+   {
+      int[]      swap;
+      ByteBuffer key;
+      Integer    original;
+
+      if (mergedShow != -1)
+      {
+         pendingShow += mergedShow;
+         mergedShow   = -1;
+      }
+      if (pendingShow == -1) { return; }
+      swap    = pixels;
+      pixels  = pending;
+      pending = swap;
+      key     = digest(pixels);
+      if ((original = (Integer)originals.get(key)) != null)
+      {
+         chunkOut.writeByte(FlushFormat.REPEAT_FRAME);
+         chunkOut.writeInt(pendingShow);
+         chunkOut.writeInt(original.intValue());
+         frameIndex.writeInt(-1 - original.intValue());
+         frameIndex.writeInt(pendingShow);
+      }
+      else
+      {
+         originals.put(key, Integer.valueOf(frameCount));
+         if (((frameCount % keyFrameInterval) == 0) || !hasPrevious ||
+             !writeDelta(pendingShow))
+         {
+            writeKey(pendingShow);
+         }
+         frameIndex.writeInt(chunkCount - 1);
+         frameIndex.writeInt(pendingShow);
+         swap        = previous;
+         previous    = pixels;
+         pixels      = swap;
+         hasPrevious = true;
+      }
+      pendingShow = -1;
+      frameCount++;
+   }
+
+
+   // Digest of frame pixels.
+   private ByteBuffer digest(int[] values)
+   {
+      int i, n;
+
+      for (i = 0; i < values.length; i += n)
+      {
+         n = Math.min(values.length - i, block.length / 4);
+         ((Buffer)blockInts).clear();
+         blockInts.put(values, i, n);
+         digest.update(block, 0, n * 4);
+      }
+      return(ByteBuffer.wrap(digest.digest()));
+   }
+
+
+   // Add procedure for the player to synthesize frames with the
+   // engine's source image and parameters.
+   public void addProcedure(FlushEngine engine, int flushTimer, int rechargeTimer) throws IOException
+   {
+      int i;
+
+      startChunk();
+      sourceChunk = chunkCount - 1;
+      chunkOut.writeByte(FlushFormat.PROCEDURE);
+      writeInts(engine.source, 0, size * size);
+      chunkOut.writeInt(engine.holeSize);
+      chunkOut.writeInt(engine.fragmentSize);
+      chunkOut.writeInt(engine.rotationIncrement);
+      chunkOut.writeInt(engine.numSpiral);
+      chunkOut.writeDouble(engine.minSpiral);
+      chunkOut.writeDouble(engine.maxSpiral);
+      chunkOut.writeDouble(engine.spiralConverge);
+      chunkOut.writeLong(engine.randomSeed);
+      chunkOut.writeInt(flushTimer);
+      chunkOut.writeInt(rechargeTimer);
+      hasPrevious = false;
+   }
+
+
+   // Add palette, after which frames are written in indexed colour.
+   public void addPalette(FlushPalette palette) throws IOException
+   {
+      startSource();
+      chunkOut.writeByte(FlushFormat.PALETTE);
+      chunkOut.writeInt(palette.colors.length);
+      writeInts(palette.colors, 0, palette.colors.length);
+      this.palette = palette;
+      hasPrevious  = false;
+   }
+
+
+   // Add annulus between the hole and cassette rim, given as the circle
+   // masks of each row, after which key frames that are black outside
+   // the annulus hold only its pixels.
+   public void addAnnulus(int[] cassetteLeft, int[] cassetteRight,
+                          int[] holeLeft, int[] holeRight) throws IOException
+   {
+      int i, j, row;
+
+      startSource();
+      chunkOut.writeByte(FlushFormat.ANNULUS);
+      annulus = new int[size * 4];
+      for (row = i = 0; row < size; row++)
+      {
+         // Spans left and right of the hole, if any.
+         j              = Math.min(holeLeft[row], cassetteRight[row]);
+         annulus[i]     = cassetteLeft[row];
+         annulus[i + 1] = j;
+         annulus[i + 2] = Math.max(holeRight[row], j);
+         annulus[i + 3] = Math.max(cassetteRight[row], annulus[i + 2]);
+         for (j = 0; j < 4; j++, i++)
+         {
+            chunkOut.writeShort(annulus[i]);
+            annulus[i] += row * size;
+         }
+         annulusPixels += (annulus[i - 3] - annulus[i - 4]) + (annulus[i - 1] - annulus[i - 2]);
+      }
+      hasPrevious = false;
+   }
+
+
+   // Add atlas of fragments cut from the source pixels at the given
+   // upper left corners, for drawing placement frames.
+   public void addAtlas(int[] source, int holeRadius, int fragmentSize,
+                        int count, int[] fragmentX, int[] fragmentY) throws IOException
+   {
+      int i;
+
+      startChunk();
+      sourceChunk = chunkCount - 1;
+      chunkOut.writeByte(FlushFormat.ATLAS);
+      writeInts(source, 0, size * size);
+      chunkOut.writeInt(holeRadius);
+      chunkOut.writeInt(fragmentSize);
+      chunkOut.writeInt(count);
+      for (i = 0; i < count; i++)
+      {
+         chunkOut.writeShort(fragmentX[i]);
+         chunkOut.writeShort(fragmentY[i]);
+      }
+      hasPrevious = false;
+   }
+
+
+   // Add frame showing the atlas source image.
+   public void addSource(int show) throws IOException
+   {
+      addPending();
+      if ((chunkOut == null) || ((frameCount % keyFrameInterval) == 0)) { startChunk(); }
+      chunkOut.writeByte(FlushFormat.SOURCE_FRAME);
+      chunkOut.writeInt(show);
+      frameIndex.writeInt(chunkCount - 1);
+      frameIndex.writeInt(show);
+      hasPrevious = false;
+      frameCount++;
+   }
+
+
+   // Add frame of atlas fragments centered at the given locations.
+   // Placements are in painting order, each written as the difference
+   // from the one before, since neighboring fragments swirl together.
+   public void add(int show, int count, int[] ids, int[] x, int[] y) throws IOException
+   {
+      int i, id, px, py;
+
+      addPending();
+      if ((chunkOut == null) || ((frameCount % keyFrameInterval) == 0)) { startChunk(); }
+      chunkOut.writeByte(FlushFormat.PLACEMENT_FRAME);
+      chunkOut.writeInt(show);
+      chunkOut.writeInt(count);
+      for (i = id = px = py = 0; i < count; i++)
+      {
+         chunkOut.writeInt(ids[i] - id);
+         chunkOut.writeShort(x[i] - px);
+         chunkOut.writeShort(y[i] - py);
+         id = ids[i];
+         px = x[i];
+         py = y[i];
+      }
+      frameIndex.writeInt(chunkCount - 1);
+      frameIndex.writeInt(show);
+      hasPrevious = false;
+      frameCount++;
+   }
+
+
+   // Write key frame, starting a new chunk.
+   private void writeKey(int show) throws IOException
+   {
+      int i;
+
+      startChunk();
+      if ((annulus != null) && annular())
+      {
+         chunkOut.writeByte((palette != null) ? FlushFormat.INDEXED_ANNULUS : FlushFormat.ANNULUS_KEY_FRAME);
+         chunkOut.writeInt(show);
+         for (i = 0; i < annulus.length; i += 2)
+         {
+            if (palette != null)
+            {
+               writeIndices(annulus[i], annulus[i + 1] - annulus[i]);
+            }
+            else
+            {
+               writeInts(pixels, annulus[i], annulus[i + 1] - annulus[i]);
+            }
+         }
+      }
+      else if (palette != null)
+      {
+         chunkOut.writeByte(FlushFormat.INDEXED_KEY_FRAME);
+         chunkOut.writeInt(show);
+         writeIndices(0, pixels.length);
+      }
+      else
+      {
+         chunkOut.writeByte(FlushFormat.KEY_FRAME);
+         chunkOut.writeInt(show);
+         writeInts(pixels, 0, pixels.length);
+      }
+   }
+
+
+   // Are pixels outside the annulus all black?
+   // The source image is not, so its frame is written whole.
+   private boolean annular()
+   {
+      int i, j, k;
+
+      for (i = k = 0; i <= annulus.length; i++)
+      {
+         j = (i < annulus.length) ? annulus[i] : pixels.length;
+         if ((i % 2) == 0)
+         {
+            for ( ; k < j; k++)
+            {
+               if (pixels[k] != FlushPalette.BLACK) { return(false); }
+            }
+         }
+         k = j;
+      }
+      return(true);
+   }
+
+
+   // Write delta frame of pixel spans changed from the previous frame.
+   // Spans separated by short unchanged gaps are merged.
+   // Returns false if a key frame, holding only the annulus when the
+   // rest of the frame is black, would be no larger.
+   private boolean writeDelta(int show) throws IOException
+   {
+      int i, j, k, n, changed, pixelBytes, keyPixels;
+
+      // Find changed spans.
+      n       = 0;
+      changed = 0;
+      for (i = 0; i < pixels.length; )
+      {
+         if (pixels[i] == previous[i]) { i++; continue; }
+         for (j = i + 1, k = j; k < pixels.length && (k - j) <= FlushFormat.DELTA_SPAN_GAP; k++)
+         {
+            if (pixels[k] != previous[k]) { j = k + 1; }
+         }
+         spans[n++] = i;
+         spans[n++] = j - i;
+         changed   += j - i;
+         i          = j;
+      }
+      pixelBytes = (palette != null) ? 1 : 4;
+      keyPixels  = ((annulus != null) && annular()) ? annulusPixels : pixels.length;
+      if ((4 * (1 + n)) + (changed * pixelBytes) >= (keyPixels * pixelBytes)) { return(false); }
+
+      // Write spans as offset from previous span end, length and pixels.
+      chunkOut.writeByte((palette != null) ? FlushFormat.INDEXED_DELTA : FlushFormat.DELTA_FRAME);
+      chunkOut.writeInt(show);
+      chunkOut.writeInt(n / 2);
+      for (i = j = 0; i < n; i += 2)
+      {
+         chunkOut.writeInt(spans[i] - j);
+         chunkOut.writeInt(spans[i + 1]);
+         if (palette != null)
+         {
+            writeIndices(spans[i], spans[i + 1]);
+         }
+         else
+         {
+            writeInts(pixels, spans[i], spans[i + 1]);
+         }
+         j = spans[i] + spans[i + 1];
+      }
+      return(true);
+   }
+
+
+   // Write palette indices of pixels to chunk a block at a time.
+   private void writeIndices(int offset, int length) throws IOException
+   {
+      int i, n;
+
+      for ( ; length > 0; offset += n, length -= n)
+      {
+         n = Math.min(length, block.length);
+         for (i = 0; i < n; i++) { block[i] = (byte)palette.index(pixels[offset + i]); }
+         chunkOut.write(block, 0, n);
+      }
+   }
+
+
+   // Write ints to chunk a block at a time.
+   private void writeInts(int[] values, int offset, int length) throws IOException
+   {
+      int n;
+
+      for ( ; length > 0; offset += n, length -= n)
+      {
+         n = Math.min(length, block.length / 4);
+         ((Buffer)blockInts).clear();
+         blockInts.put(values, offset, n);
+         chunkOut.write(block, 0, n * 4);
+      }
+   }
+
+
+   // Start chunk of source records, unless the current chunk is one.
+   private void startSource() throws IOException
+   {
+      if ((chunkOut == null) || (sourceChunk != chunkCount - 1)) { startChunk(); }
+      sourceChunk = chunkCount - 1;
+   }
+
+
+   // Start new chunk.
+   private void startChunk() throws IOException
+   {
+      endChunk();
+      chunk    = new ByteArrayOutputStream();
+      chunkOut = new DataOutputStream(new BufferedOutputStream(chunk));
+      chunkCount++;
+   }
+
+
+   // End current chunk, queuing its records for compression, and write
+   // the chunks already compressed. At most two chunks per pool thread
+   // are in flight.
+   private void endChunk() throws IOException
+   {
+      if (chunkOut == null) { return; }
+      chunkOut.close();
+      compressing.addElement(ForkJoinPool.commonPool().submit(
+                                new Compress(codec, chunk.toByteArray(), level)));
+      chunk    = null;
+      chunkOut = null;
+      while (!compressing.isEmpty() &&
+             (((Future)compressing.firstElement()).isDone() ||
+              (compressing.size() > ForkJoinPool.getCommonPoolParallelism() * 2)))
+      {
+         writeChunk();
+      }
+   }
+
+
+   // Write oldest compressed chunk, waiting for it if necessary.
+   private void writeChunk() throws IOException
+   {
+      byte[] bytes;
+
+      try
+      {
+         bytes = (byte[])((Future)compressing.firstElement()).get();
+      }
+      catch (InterruptedException e) {
+         throw new InterruptedIOException();
+      }
+      catch (ExecutionException e) {
+         throw new IOException(e.getCause().toString());
+      }
+      compressing.removeElementAt(0);
+      out.writeInt(bytes.length);
+      chunkIndex.writeInt(out.size());
+      chunkIndex.writeInt(bytes.length);
+      out.write(bytes);
+   }
+
+
+   // Chunk compression task.
+   private static class Compress implements Callable<byte[]>
+   {
+      private FlushCodec codec;
+      private byte[]     records;
+      private int        level;
+
+      public Compress(FlushCodec codec, byte[] records, int level)
+      {
+         this.codec   = codec;
+         this.records = records;
+         this.level   = level;
+      }
+
+
+      public byte[] call() throws IOException
+      {
+         return(codec.compress(records, level));
+      }
+   }
+
+
+   // Close cassette, writing the index.
+   public void close() throws IOException
+   {
+      int[] swap;
+      int   offset, show;
+
+      // Keep the final frame as recorded unless it repeats the one before.
+      if (mergedShow != -1)
+      {
+         show       = mergedShow;
+         mergedShow = -1;
+         addPending();
+         swap        = pending;
+         pending     = merged;
+         merged      = swap;
+         pendingShow = show;
+      }
+      addPending();
+      endChunk();
+      while (!compressing.isEmpty()) { writeChunk(); }
+      out.writeInt(-1);
+      offset = out.size();
+      out.writeInt(chunkCount);
+      chunkTable.writeTo(out);
+      out.writeInt(sourceChunk);
+      out.writeInt(frameCount);
+      frameTable.writeTo(out);
+      out.writeInt(offset);
+      out.write(FlushFormat.MAGIC);
+      out.close();
+   }
+
+
+   // Write possibly null string.
+   private static void writeString(DataOutputStream out, String s) throws IOException
+   {
+      out.writeBoolean(s != null);
+      if (s != null) { out.writeUTF(s); }
+   }
+}
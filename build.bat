@@ -1,4 +1,10 @@
 javac -d . *.java
+if errorlevel 1 exit /b 1
+javac -cp . -d test test\*.java
+if errorlevel 1 exit /b 1
+java -cp .;test graffitv.FlushPaletteTest
+if errorlevel 1 exit /b 1
+rmdir /s /q test\graffitv
 copy *.cassette graffitv
 jar cfm FlushPlayer.jar flushplayer.mf graffitv *.au
 jar cfm FlushRecorder.jar flushrecorder.mf graffitv *.au
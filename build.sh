@@ -1,4 +1,7 @@
-javac -d . *.java
+javac -d . *.java || exit 1
+javac -cp . -d test test/*.java || exit 1
+java -cp .:test graffitv.FlushPaletteTest || exit 1
+rm -r test/graffitv
 cp *.cassette graffitv
 jar cfm FlushPlayer.jar flushplayer.mf graffitv *.au
 jar cfm FlushRecorder.jar flushrecorder.mf graffitv *.au
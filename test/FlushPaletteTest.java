@@ -0,0 +1,79 @@
+/*
+ *
+ * FlushPaletteTest.java
+ *
+ * Regression checks of FlushPalette.
+ *
+ * Run by build.sh and build.bat, failing the build on a failed check:
+ *
+ * javac -cp . -d test test/*.java
+ * java -cp .:test graffitv.FlushPaletteTest
+ *
+ */
+
+package graffitv;
+
+import java.util.*;
+
+// Build palettes of images whose colours make median cut split boxes
+// at their edges, and check every colour maps within the palette error.
+public class FlushPaletteTest
+{
+   // Check palette of pixels.
+   static void check(String name, int[] pixels)
+   {
+      FlushPalette palette;
+      int          i, c, e;
+
+      palette = new FlushPalette(pixels);
+      for (i = 0; i < pixels.length; i++)
+      {
+         c = palette.colors[palette.index(pixels[i])];
+         e = Math.max(Math.abs(((c >> 16) & 0xff) - ((pixels[i] >> 16) & 0xff)),
+                      Math.max(Math.abs(((c >> 8) & 0xff) - ((pixels[i] >> 8) & 0xff)),
+                               Math.abs((c & 0xff) - (pixels[i] & 0xff))));
+         if (e > palette.maxError)
+         {
+            throw new RuntimeException(name + ": pixel " + i + " error " + e +
+                                       " exceeds " + palette.maxError);
+         }
+      }
+      System.out.println(name + ": " + palette.colors.length + " colours, error " +
+                         palette.maxError);
+   }
+
+
+   public static void main(String[] args)
+   {
+      int[]  pixels;
+      Random random;
+      int    i;
+
+      // Solid sky band over noisy pixels: the heavy sky colour sorts
+      // last in the boxes holding it.
+      random = new Random(1);
+      pixels = new int[300 * 300];
+      for (i = 0; i < pixels.length; i++)
+      {
+         pixels[i] = (i < (pixels.length * 2) / 3) ? 0xff87ceff :
+                     (0xff000000 | random.nextInt(0x800000));
+      }
+      check("sky over noise", pixels);
+
+      // Heavy colour sorting first, then last, in every channel.
+      for (i = 0; i < pixels.length; i++)
+      {
+         pixels[i] = ((i % 7) != 0) ? (((i % 2) == 0) ? 0xff010101 : 0xfffefefe) :
+                     (0xff000000 | random.nextInt(0x1000000));
+      }
+      check("heavy extremes", pixels);
+
+      // Few noisy colours under one dominant colour.
+      for (i = 0; i < pixels.length; i++)
+      {
+         pixels[i] = (i >= 300) ? 0xffff8000 : (0xff000000 | random.nextInt(0x1000000));
+      }
+      check("dominant colour", pixels);
+      System.out.println("OK");
+   }
+}